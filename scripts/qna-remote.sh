@@ -0,0 +1,29 @@
+#!/usr/bin/env bash
+# Forwards a command to a running `QnACLIClient serve` instance so no JVM is started per call.
+#   scripts/qna-remote.sh ask -cf my.config -q "What is RAG?"
+# QNA_HOST / QNA_PORT select the server (default 127.0.0.1:7700) and QNA_TOKEN_FILE the token the
+# server wrote at startup (default ~/.qna-client-serve.token).
+host=${QNA_HOST:-127.0.0.1}
+port=${QNA_PORT:-7700}
+token_file=${QNA_TOKEN_FILE:-$HOME/.qna-client-serve.token}
+
+token=$(<"$token_file") || { echo "Cannot read qna server token from ${token_file}" >&2; exit 1; }
+
+exec 3<>"/dev/tcp/${host}/${port}" || { echo "No qna server on ${host}:${port}" >&2; exit 1; }
+line=""
+for arg in "$@"; do
+  line+="'${arg//\'/\'\\\'\'}' "
+done
+# relative file options are resolved against this directory by the server
+printf '%s\n%s\n%s\n' "$token" "$PWD" "$line" >&3
+
+code=1
+while IFS= read -r l <&3 || [ -n "$l" ]; do
+  if [[ $l == "#exit "* ]]; then
+    code=${l#\#exit }
+  else
+    printf '%s\n' "$l"
+  fi
+done
+exec 3<&-
+exit "$code"
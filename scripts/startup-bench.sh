@@ -0,0 +1,33 @@
+#!/usr/bin/env bash
+# Measures startup of the client built by the default, appcds and native profiles.
+#   mvn -Pappcds package && scripts/startup-bench.sh [runs] [command...]
+# Without a command, `list-systems -h` is timed. Builds that are missing are skipped.
+runs=${1:-10}
+shift
+cmd=("$@")
+[ ${#cmd[@]} -eq 0 ] && cmd=(list-systems -h)
+
+dir=$(cd "$(dirname "$0")/.." && pwd)
+jar="$dir/target/dataworkz-java-qna-client-1.0-jar-with-dependencies.jar"
+jsa="$dir/target/qna-client.jsa"
+native="$dir/target/qna-client"
+
+bench() {
+  local name=$1
+  shift
+  local start end
+  start=$(date +%s%N)
+  for ((i = 0; i < runs; i++)); do
+    "$@" "${cmd[@]}" > /dev/null 2>&1
+  done
+  end=$(date +%s%N)
+  printf '%-10s %6d ms/run\n' "$name" $(( (end - start) / runs / 1000000 ))
+}
+
+[ -f "$jar" ] && bench jar java -jar "$jar"
+# one-shot runs finish before C2 pays off; these flags need no special build
+[ -f "$jar" ] && bench jar-c1 java -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -jar "$jar"
+[ -f "$jar" ] && [ -f "$jsa" ] && bench appcds java -XX:SharedArchiveFile="$jsa" -jar "$jar"
+[ -f "$jar" ] && [ -f "$jsa" ] && bench appcds-c1 java -XX:SharedArchiveFile="$jsa" -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -jar "$jar"
+[ -x "$native" ] && bench native "$native"
+exit 0
@@ -0,0 +1,134 @@
+package com.dataworkz.qna.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Training run for the {@code appcds} profile, built by that profile only and never part of the jar. Starts a
+ * loopback stub of the QnA API that returns canned JSON, then runs the training commands through the jar's
+ * {@code shell} in a child JVM that writes the archive, so the request, decompression, JSON decoding and rendering
+ * classes are loaded and end up in it. The child runs with exactly {@code -jar <jar>}, as CDS only maps an archive
+ * when the classpath at runtime starts with the one it was dumped with.
+ * <p>
+ * {@code ${service}} in a line is replaced with the stub URL and {@code ${dir}} with the training file directory.
+ * Exits with 1 if the run fails - an error on stderr or a failed response - so a broken training run fails the build.
+ */
+class CdsTraining {
+    private static final String SYSTEMS = "{\"training\":\"Training System\"}";
+    private static final String SYSTEM = "{\"id\":\"training\",\"name\":\"Training System\",\"params\":{\"topK\":\"5\",\"model\":\"training\"}}";
+    private static final String LLMS = "{\"training\":\"Training LLM\"}";
+    private static final String QUESTIONS = "{\"q1\":{\"question\":\"training question\",\"timestamp\":\"2024-01-01T00:00:00Z\"}}";
+    private static final String QUESTION = "{\"question\":\"training question\",\"llm_response\":"
+            + "\"{\\\"answer\\\":\\\"training answer\\\",\\\"context\\\":[{\\\"link\\\":\\\"https://example.com/a\\\"}],\\\"probe\\\":{}}\"}";
+    private static final String ANSWER = "{\"question\":\"training question\",\"answer\":\"training answer\","
+            + "\"context\":[{\"link\":\"https://example.com/a\",\"text\":\"training context\"},{\"link\":\"https://example.com/b\",\"text\":\"more context\"}],"
+            + "\"probe\":{\"retrieval\":{\"ms\":12}}}";
+    private static final String SEARCH = "{\"question\":\"training question\",\"searchResultsList\":["
+            + "{\"link\":\"https://example.com/a\",\"similarityScore\":0.91,\"contents\":\"training context\"},"
+            + "{\"link\":\"https://example.com/b\",\"similarityScore\":0.82,\"contents\":\"more context\"}]}";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3) {
+            System.err.println("Usage: CdsTraining <jar> <archive> <training-file>");
+            System.exit(2);
+        }
+        Path trainingFile = Paths.get(args[2]).toAbsolutePath();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", CdsTraining::respond);
+        server.start();
+        String service = "http://127.0.0.1:" + server.getAddress().getPort();
+        StringBuilder commands = new StringBuilder();
+        for (String line : Files.readAllLines(trainingFile, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                commands.append(line.replace("${service}", service).replace("${dir}", trainingFile.getParent().toString())).append('\n');
+            }
+        }
+        commands.append("exit\n");
+
+        Path stdout = Files.createTempFile("cds-training", ".out");
+        Path stderr = Files.createTempFile("cds-training", ".err");
+        int exitCode;
+        try {
+            Process process = new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-XX:ArchiveClassesAtExit=" + args[1],
+                    // picocli is compiled for Java 5 and cannot be archived; skip the per-class warnings
+                    "-Xlog:cds=error",
+                    "-jar", args[0], "shell")
+                    .redirectOutput(stdout.toFile())
+                    .redirectError(stderr.toFile())
+                    .start();
+            try (OutputStream in = process.getOutputStream()) {
+                in.write(commands.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            exitCode = process.waitFor();
+        } finally {
+            server.stop(0);
+        }
+        String errors = Files.readString(stderr, StandardCharsets.UTF_8);
+        List<String> failed = new ArrayList<>();
+        for (String line : Files.readAllLines(stdout, StandardCharsets.UTF_8)) {
+            if (line.contains("Failed: (")) {
+                failed.add(line);
+            }
+        }
+        Files.delete(stdout);
+        Files.delete(stderr);
+        if (exitCode != 0 || !errors.isBlank() || !failed.isEmpty()) {
+            System.err.println("Training run failed with exit code " + exitCode);
+            failed.forEach(System.err::println);
+            System.err.print(errors);
+            System.exit(1);
+        }
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getRequestBody().readAllBytes();
+            String path = exchange.getRequestURI().getPath();
+            String body;
+            if (path.endsWith("/answer")) {
+                body = ANSWER;
+            } else if (path.endsWith("/search")) {
+                body = SEARCH;
+            } else if (path.endsWith("/llm-providers")) {
+                body = LLMS;
+            } else if (path.endsWith("/questionshistory")) {
+                body = QUESTIONS;
+            } else if (path.contains("/questions/")) {
+                body = QUESTION;
+            } else if (path.equals("/api/qna/v1/systems")) {
+                body = SYSTEMS;
+            } else {
+                body = SYSTEM;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(bytes);
+                }
+                bytes = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+}
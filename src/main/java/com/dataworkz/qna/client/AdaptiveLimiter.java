@@ -0,0 +1,233 @@
+package com.dataworkz.qna.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Limits the number of calls in flight and adapts the limit to observed latency, gradient style.
+ * <p>
+ * Each successful call feeds its round trip time into a smoothed RTT which is compared with the smallest smoothed
+ * RTT seen. Until the first drop or latency rise the limiter is in slow start and each success raises the limit by
+ * one, doubling it per round. After that, while latency stays within {@code TOLERANCE} of the minimum the limit grows
+ * by about sqrt(limit) per round; as latency rises the limit shrinks in proportion. Dropped calls (429, 503,
+ * timeouts) cut the limit multiplicatively. Answer latency drifts with backend load and model choice, so the minimum
+ * creeps towards the smoothed RTT by {@code MIN_RTT_DECAY} per round, i.e. per limit calls. A sustained slowdown that
+ * quadruples latency holds the limit down for a few hundred rounds before it is accepted as the new normal.
+ */
+public class AdaptiveLimiter {
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double RTT_WEIGHT = 0.2;
+    private static final double BACKOFF = 0.75;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double MIN_RTT_DECAY = 0.002;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Deque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private double smoothedRttNanos;
+    private double minRttNanos;
+    private boolean slowStart = true;
+    private long lastDropNanos = Long.MIN_VALUE;
+    private long drops;
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return a permit, completed once a call may start. Callers must complete the permit with one of its methods.
+     */
+    public CompletableFuture<Permit> acquireAsync() {
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit(inFlight));
+            }
+            CompletableFuture<Permit> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    public Permit acquire() throws InterruptedException {
+        CompletableFuture<Permit> waiter = acquireAsync();
+        try {
+            return waiter.get();
+        } catch (InterruptedException e) {
+            if (!waiter.cancel(false)) {
+                // granted while we were being interrupted
+                waiter.join().ignore();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return waiters.size();
+    }
+
+    public synchronized double getMinRttMillis() {
+        return minRttNanos / 1_000_000.0;
+    }
+
+    public synchronized double getSmoothedRttMillis() {
+        return smoothedRttNanos / 1_000_000.0;
+    }
+
+    public synchronized long getDrops() {
+        return drops;
+    }
+
+    private void onSuccess(Permit permit, long rttNanos) {
+        List<Runnable> granted;
+        synchronized (this) {
+            inFlight--;
+            smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos * (1 - RTT_WEIGHT) + rttNanos * RTT_WEIGHT;
+            if (minRttNanos == 0 || smoothedRttNanos < minRttNanos) {
+                minRttNanos = smoothedRttNanos;
+            } else {
+                // per round rather than per call, so a high limit does not speed up the drift
+                minRttNanos += (smoothedRttNanos - minRttNanos) * MIN_RTT_DECAY / limit;
+            }
+            double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * minRttNanos / smoothedRttNanos));
+            // only grow when the limit was actually being used, otherwise it drifts up with no evidence
+            boolean appLimited = permit.inFlightAtStart < limit / 2;
+            if (gradient < 1.0) {
+                slowStart = false;
+            }
+            if (slowStart) {
+                limit = clamp(limit + (appLimited ? 0 : 1));
+            } else {
+                double newLimit = limit * gradient + (appLimited ? 0 : Math.sqrt(limit));
+                limit = clamp(limit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+            }
+            granted = grant();
+        }
+        granted.forEach(Runnable::run);
+    }
+
+    private void onDropped(Permit permit) {
+        List<Runnable> granted;
+        synchronized (this) {
+            inFlight--;
+            drops++;
+            slowStart = false;
+            // calls already in flight at the last cut saw the same overload, cut once per episode
+            if (permit.startNanos > lastDropNanos) {
+                limit = clamp(limit * BACKOFF);
+                lastDropNanos = System.nanoTime();
+            }
+            granted = grant();
+        }
+        granted.forEach(Runnable::run);
+    }
+
+    private void onIgnore() {
+        List<Runnable> granted;
+        synchronized (this) {
+            inFlight--;
+            granted = grant();
+        }
+        granted.forEach(Runnable::run);
+    }
+
+    // called with the lock held; futures are completed by the caller after releasing it
+    private List<Runnable> grant() {
+        List<Runnable> granted = new ArrayList<>();
+        while (inFlight < (int) limit && !waiters.isEmpty()) {
+            CompletableFuture<Permit> waiter = waiters.poll();
+            if (!waiter.isCancelled()) {
+                inFlight++;
+                Permit permit = new Permit(inFlight);
+                granted.add(() -> {
+                    if (!waiter.complete(permit)) {
+                        // cancelled after it was polled
+                        permit.ignore();
+                    }
+                });
+            }
+        }
+        return granted;
+    }
+
+    private double clamp(double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit=%d inFlight=%d queued=%d rtt=%.1fms minRtt=%.1fms drops=%d",
+                (int) limit, inFlight, waiters.size(), getSmoothedRttMillis(), getMinRttMillis(), drops);
+    }
+
+    /**
+     * Permission to run one call. Exactly one of {@link #success}, {@link #dropped} or {@link #ignore} must be called.
+     */
+    public class Permit {
+        private final long startNanos = System.nanoTime();
+        private final int inFlightAtStart;
+        private boolean done;
+
+        private Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * The call completed. A round trip time that is not positive, e.g. from a clock that did not advance, carries
+         * no latency information and is treated as {@link #ignore}.
+         */
+        public void success(long rttNanos) {
+            if (rttNanos <= 0) {
+                ignore();
+            } else if (complete()) {
+                onSuccess(this, rttNanos);
+            }
+        }
+
+        /**
+         * The call was rejected or timed out because the backend is overloaded.
+         */
+        public void dropped() {
+            if (complete()) {
+                onDropped(this);
+            }
+        }
+
+        /**
+         * The call failed for a reason that says nothing about load, e.g. a bad request.
+         */
+        public void ignore() {
+            if (complete()) {
+                onIgnore();
+            }
+        }
+
+        private synchronized boolean complete() {
+            boolean first = !done;
+            done = true;
+            return first;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.dataworkz.qna.client;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A multi-turn conversation with a QnA system. Each answered question is appended to the history, which is sent
+ * as {@code conversationHistory} with the next question.
+ * <p>
+ * Turns are serialized once, when they are appended, and the history is kept within a window of turns and bytes
+ * by dropping the oldest turns. Building a request therefore costs the size of the window, not of the whole
+ * conversation. Not thread safe - a conversation is asked one question at a time.
+ */
+public class ConversationSession {
+    // rough size of a token in bytes of English text, used to turn a token budget into a byte budget
+    private static final int BYTES_PER_TOKEN = 4;
+
+    private final DataworkzRAG dw;
+    private final String qnaSystemId;
+    private final String llmProviderId;
+    private final Deque<Turn> turns = new ArrayDeque<>();
+    private String filter;
+    private String queryPlan;
+    private String properties;
+    private int maxTurns = Integer.MAX_VALUE;
+    private long maxHistoryBytes = Long.MAX_VALUE;
+    private long historyBytes;
+
+    public ConversationSession(DataworkzRAG dw, String qnaSystemId, String llmProviderId) {
+        if (dw == null || qnaSystemId == null || llmProviderId == null) {
+            throw new IllegalArgumentException("client, QnA system and LLM must be provided");
+        }
+        this.dw = dw;
+        this.qnaSystemId = qnaSystemId;
+        this.llmProviderId = llmProviderId;
+    }
+
+    /**
+     * Ask the next question with the current history. If it is answered, the question and answer are appended.
+     */
+    public RAGResponse ask(String question) throws URISyntaxException, IOException, InterruptedException {
+        RAGResponse response = dw.askQuestion(qnaSystemId, llmProviderId, question, filter, getRequestBody(), properties);
+        if (response.hasPayload()) {
+            Object answer = response.getPayload().get("answer");
+            append(question, answer == null ? "" : String.valueOf(answer));
+        }
+        return response;
+    }
+
+    /**
+     * Add a turn to the history, e.g. to seed the conversation, then drop the oldest turns outside the window.
+     */
+    public void append(String question, String answer) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("question").value(question);
+            writer.name("answer").value(answer);
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Turn turn = new Turn(out.toString());
+        turns.addLast(turn);
+        historyBytes += turn.bytes;
+        trim();
+    }
+
+    /**
+     * @return the body for the next question - query plan, if any, and the history window
+     */
+    public String getRequestBody() {
+        StringWriter out = new StringWriter((int) Math.min(historyBytes + 64, Integer.MAX_VALUE));
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            if (queryPlan != null) {
+                writer.name("queryPlan").jsonValue(queryPlan);
+            }
+            writer.name("conversationHistory").beginArray();
+            for (Turn turn : turns) {
+                writer.jsonValue(turn.json);
+            }
+            writer.endArray();
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    public void clear() {
+        turns.clear();
+        historyBytes = 0;
+    }
+
+    public int getTurnCount() {
+        return turns.size();
+    }
+
+    /**
+     * @return UTF-8 size of the serialized turns in the window
+     */
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    public void setMaxTurns(int maxTurns) {
+        if (maxTurns < 0) {
+            throw new IllegalArgumentException("maxTurns must not be negative");
+        }
+        this.maxTurns = maxTurns;
+        trim();
+    }
+
+    public void setMaxHistoryBytes(long maxHistoryBytes) {
+        if (maxHistoryBytes < 0) {
+            throw new IllegalArgumentException("maxHistoryBytes must not be negative");
+        }
+        this.maxHistoryBytes = maxHistoryBytes;
+        trim();
+    }
+
+    /**
+     * Approximate token budget for the history, at about 4 bytes per token.
+     */
+    public void setMaxHistoryTokens(int maxHistoryTokens) {
+        setMaxHistoryBytes((long) maxHistoryTokens * BYTES_PER_TOKEN);
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param queryPlan query plan JSON object, sent as is with every question
+     */
+    public void setQueryPlan(String queryPlan) {
+        this.queryPlan = queryPlan;
+    }
+
+    public void setProperties(String properties) {
+        this.properties = properties;
+    }
+
+    private void trim() {
+        while (!turns.isEmpty() && (turns.size() > maxTurns || historyBytes > maxHistoryBytes)) {
+            historyBytes -= turns.removeFirst().bytes;
+        }
+    }
+
+    private static class Turn {
+        final String json;
+        final int bytes;
+
+        Turn(String json) {
+            this.json = json;
+            this.bytes = json.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
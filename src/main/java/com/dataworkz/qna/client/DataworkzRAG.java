@@ -2,17 +2,26 @@ package com.dataworkz.qna.client;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class DataworkzRAG {
     public static final String LIST_SYSTEMS = "list.systems";
@@ -31,8 +40,18 @@ public class DataworkzRAG {
     private static final String GET_QUESTION_API = "/api/qna/v1/systems/{systemId}/questions/{questionId}";
     private static final String SEARCH_API = "/api/qna/v1/systems/{systemId}/search?query={query}&properties={properties}";
     private static final String SEARCH_WITH_FILTER_API = "/api/qna/v1/systems/{systemId}/search?query={query}&filter={filter}&properties={properties}";
+    // built without anonymous TypeToken subclasses so no generic signature reflection is needed (e.g. under native-image)
+    private static final Type STRING_MAP = TypeToken.getParameterized(Map.class, String.class, String.class).getType();
+    private static final Type OBJECT_MAP = TypeToken.getParameterized(Map.class, String.class, Object.class).getType();
+    private static final Type NESTED_STRING_MAP = TypeToken.getParameterized(Map.class, String.class, STRING_MAP).getType();
     private final String dwHost;
     private final String apiKey;
+    private boolean compressionEnabled;
+    private volatile HttpClient httpClient;
+    private volatile AdaptiveLimiter limiter;
+    private Duration requestTimeout;
+    private volatile NearDuplicateIndex nearDuplicateIndex;
+    private volatile boolean serveNearDuplicates;
 
     public DataworkzRAG(String dwHost, String apiKey) {
         if (dwHost == null || apiKey == null) {
@@ -49,20 +68,54 @@ public class DataworkzRAG {
 
     public RAGResponse listQnASystems() throws IOException, InterruptedException, URISyntaxException {
         HttpRequest request = getHttpRequest(LIST_QNA_SYSTEMS_API, Map.of());
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            return new RAGResponse(LIST_SYSTEMS, response, null);
-        } else {
-            Gson gson = new Gson();
-            return new RAGResponse(LIST_SYSTEMS, response, gson.fromJson(response.body(), new TypeToken<Map<String, String>>() {}.getType()));
-        }
+        return send(LIST_SYSTEMS, request, STRING_MAP);
+    }
+
+    /**
+     * Ask the server for a gzip or deflate encoded response. Bodies are inflated as they stream in, before
+     * they reach the JSON parser. Off by default.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Route every call through the given limiter, null to remove. A single limiter may be shared between clients
+     * that target the same backend.
+     */
+    public void setConcurrencyLimiter(AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public AdaptiveLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Check questions asked without a body (query plan or conversation history) against the index first, null to
+     * remove. On a match the answer of the earlier question is returned without calling the service if
+     * {@code serveMatches} is set, otherwise the match is only attached to the fresh response. Answered questions
+     * without a match are added to the index.
+     */
+    public void setNearDuplicateIndex(NearDuplicateIndex index, boolean serveMatches) {
+        this.nearDuplicateIndex = index;
+        this.serveNearDuplicates = serveMatches;
+    }
+
+    /**
+     * Timeout for each request, null for none. Timed out calls count as drops for the concurrency limiter.
+     */
+    public void setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
     }
 
     protected HttpRequest getHttpRequest(String apiTemplate, Map<String, String> paramMap) throws URISyntaxException {
-        HttpRequest request = HttpRequest.newBuilder()
+        HttpRequest request = newRequestBuilder(apiTemplate, paramMap)
                 .GET()
-                .header("Authorization", "SSWS " + apiKey)
-                .uri(new URI(dwHost + populateAPI(apiTemplate, paramMap)))
                 .build();
         return request;
     }
@@ -71,14 +124,25 @@ public class DataworkzRAG {
         if (body == null) {
             return getHttpRequest(apiTemplate, paramMap);
         }
-        HttpRequest request = HttpRequest.newBuilder()
+        HttpRequest request = newRequestBuilder(apiTemplate, paramMap)
                 .POST(HttpRequest.BodyPublishers.ofString(body))
-                .header("Authorization", "SSWS " + apiKey)
-                .uri(new URI(dwHost + populateAPI(apiTemplate, paramMap)))
                 .build();
         return request;
     }
 
+    private HttpRequest.Builder newRequestBuilder(String apiTemplate, Map<String, String> paramMap) throws URISyntaxException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .header("Authorization", "SSWS " + apiKey)
+                .uri(new URI(dwHost + populateAPI(apiTemplate, paramMap)));
+        if (compressionEnabled) {
+            builder.header("Accept-Encoding", "gzip, deflate");
+        }
+        if (requestTimeout != null) {
+            builder.timeout(requestTimeout);
+        }
+        return builder;
+    }
+
     private String populateAPI(String apiTemplate, Map<String, String> params) {
         String ret = apiTemplate;
         for (Map.Entry<String, String> entry : params.entrySet()) {
@@ -91,46 +155,22 @@ public class DataworkzRAG {
 
     public RAGResponse listLLMs(String qnaSystemId) throws URISyntaxException, IOException, InterruptedException {
         HttpRequest request = getHttpRequest(LIST_LLMS_API, Map.of("systemId", qnaSystemId));
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            return new RAGResponse(LIST_LLMS, response, null);
-        } else {
-            Gson gson = new Gson();
-            return new RAGResponse(LIST_LLMS, response, gson.fromJson(response.body(), new TypeToken<Map<String, String>>() {}.getType()));
-        }
+        return send(LIST_LLMS, request, STRING_MAP);
     }
 
     public RAGResponse getSystem(String qnaSystemId) throws URISyntaxException, IOException, InterruptedException {
         HttpRequest request = getHttpRequest(GET_SYSTEM_API, Map.of("systemId", qnaSystemId));
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            return new RAGResponse(GET_SYSTEM, response, null);
-        } else {
-            Gson gson = new Gson();
-            return new RAGResponse(GET_SYSTEM, response, gson.fromJson(response.body(), new TypeToken<Map<String, Object>>() {}.getType()));
-        }
+        return send(GET_SYSTEM, request, OBJECT_MAP);
     }
 
     public RAGResponse listQuestions(String qnaSystemId) throws URISyntaxException, IOException, InterruptedException {
         HttpRequest request = getHttpRequest(LIST_QUESTIONS_API, Map.of("systemId", qnaSystemId));
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            return new RAGResponse(LIST_QUESTIONS, response, null);
-        } else {
-            Gson gson = new Gson();
-            return new RAGResponse(LIST_QUESTIONS, response, gson.fromJson(response.body(), new TypeToken<Map<String, Map<String, String>>>() {}.getType()));
-        }
+        return send(LIST_QUESTIONS, request, NESTED_STRING_MAP);
     }
 
     public RAGResponse getQuestion(String qnaSystemId, String questionId) throws URISyntaxException, IOException, InterruptedException {
         HttpRequest request = getHttpRequest(GET_QUESTION_API, Map.of("systemId", qnaSystemId, "questionId", questionId));
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            return new RAGResponse(GET_QUESTION, response, null);
-        } else {
-            Gson gson = new Gson();
-            return new RAGResponse(GET_QUESTION, response, gson.fromJson(response.body(), new TypeToken<Map<String, String>>() {}.getType()));
-        }
+        return send(GET_QUESTION, request, STRING_MAP);
     }
 
     public RAGResponse askQuestion(String qnaSystemId, String llmProviderId, String questionText) throws URISyntaxException, IOException, InterruptedException {
@@ -138,49 +178,215 @@ public class DataworkzRAG {
     }
 
     public RAGResponse askQuestion(String qnaSystemId, String llmProviderId, String questionText, String filterString, String body, String properties) throws URISyntaxException, IOException, InterruptedException {
+        HttpRequest request = getAskRequest(qnaSystemId, llmProviderId, questionText, filterString, body, properties);
+        System.out.println(request);
+        NearDuplicateIndex index = body == null || body.isEmpty() ? nearDuplicateIndex : null;
+        if (index == null) {
+            return send(ASK_QUESTION, request, OBJECT_MAP);
+        }
+        String scope = NearDuplicateIndex.scope(qnaSystemId, llmProviderId, filterString, properties);
+        NearDuplicateIndex.Match match = index.lookup(scope, questionText);
+        if (match != null && serveNearDuplicates) {
+            return fromIndex(request, questionText, match);
+        }
+        RAGResponse response = send(ASK_QUESTION, request, OBJECT_MAP);
+        return remember(index, scope, questionText, match, response);
+    }
+
+    /**
+     * Same as {@link #askQuestion(String, String, String, String, String, String)} without blocking the caller.
+     * Goes through the concurrency limiter, if one is set, before the request is sent.
+     */
+    public CompletableFuture<RAGResponse> askQuestionAsync(String qnaSystemId, String llmProviderId, String questionText, String filterString, String body, String properties) throws URISyntaxException {
+        HttpRequest request = getAskRequest(qnaSystemId, llmProviderId, questionText, filterString, body, properties);
+        NearDuplicateIndex index = body == null || body.isEmpty() ? nearDuplicateIndex : null;
+        if (index == null) {
+            return sendAsync(ASK_QUESTION, request, OBJECT_MAP);
+        }
+        String scope = NearDuplicateIndex.scope(qnaSystemId, llmProviderId, filterString, properties);
+        NearDuplicateIndex.Match match = index.lookup(scope, questionText);
+        if (match != null && serveNearDuplicates) {
+            return CompletableFuture.completedFuture(fromIndex(request, questionText, match));
+        }
+        return sendAsync(ASK_QUESTION, request, OBJECT_MAP)
+                .thenApply(response -> remember(index, scope, questionText, match, response));
+    }
+
+    private static RAGResponse fromIndex(HttpRequest request, String questionText, NearDuplicateIndex.Match match) {
+        RequestTimings timings = new RequestTimings();
+        timings.markSend();
+        timings.markHeaders();
+        timings.markLastByte();
+        RAGResponse response = toRAGResponse(ASK_QUESTION, new IndexedHttpResponse(request, toResponseBody(questionText, match)), OBJECT_MAP, null, timings);
+        response.setNearDuplicate(match, true);
+        return response;
+    }
+
+    private static RAGResponse remember(NearDuplicateIndex index, String scope, String questionText, NearDuplicateIndex.Match match, RAGResponse response) {
+        if (match != null) {
+            response.setNearDuplicate(match, false);
+        } else if (response.hasPayload()) {
+            Object answer = response.getPayload().get("answer");
+            index.add(scope, questionText, answer == null ? null : String.valueOf(answer), getContextLinks(response.getPayload()));
+        }
+        return response;
+    }
+
+    private static List<String> getContextLinks(Map<String, ?> payload) {
+        List<String> links = new ArrayList<>();
+        if (payload.get("context") instanceof List) {
+            for (Object item : (List<?>) payload.get("context")) {
+                if (item instanceof Map && ((Map<?, ?>) item).get("link") != null) {
+                    links.add(String.valueOf(((Map<?, ?>) item).get("link")));
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * An answer body in the service's shape for the question that was asked, holding the answer and context links of
+     * the match. The matched question is only available through {@link RAGResponse#getNearDuplicate()}.
+     */
+    private static String toResponseBody(String questionText, NearDuplicateIndex.Match match) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("question").value(questionText);
+            writer.name("answer").value(match.getAnswer());
+            writer.name("context").beginArray();
+            for (String link : match.getLinks()) {
+                writer.beginObject().name("link").value(link).endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    private HttpRequest getAskRequest(String qnaSystemId, String llmProviderId, String questionText, String filterString, String body, String properties) throws URISyntaxException {
         properties = properties == null ? "" : properties;
-        HttpRequest request = getHttpRequest(
+        return getHttpRequest(
                 filterString == null ? ASK_QUESTION_API : ASK_QUESTION_WITH_FILTER_API,
                 filterString == null
                 ? Map.of("systemId", qnaSystemId, "llmProviderId", llmProviderId, "questionText", questionText, "properties", properties)
                 : Map.of("systemId", qnaSystemId, "llmProviderId", llmProviderId, "questionText", questionText, "filter", filterString, "properties", properties),
                 body
         );
-        System.out.println(request);
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        Gson gson = new Gson();
-        if (response.statusCode() != 200) {
-            return new RAGResponse(ASK_QUESTION, response, null);
-        } else {
-            return new RAGResponse(ASK_QUESTION, response, gson.fromJson(response.body(), new TypeToken<Map<String, Object>>() {}.getType()));
-        }
     }
 
     public RAGResponse search(String qnaSystemId, String query, String filterString, String queryPlan, String properties) throws URISyntaxException, IOException, InterruptedException {
+        HttpRequest request = getSearchRequest(qnaSystemId, query, filterString, queryPlan, properties);
+        RAGResponse response = send(SEARCH, request, OBJECT_MAP);
+        System.out.println("Time Taken = " + response.getTimings());
+        return response;
+    }
+
+    public CompletableFuture<RAGResponse> searchAsync(String qnaSystemId, String query, String filterString, String queryPlan, String properties) throws URISyntaxException {
+        return sendAsync(SEARCH, getSearchRequest(qnaSystemId, query, filterString, queryPlan, properties), OBJECT_MAP);
+    }
+
+    private HttpRequest getSearchRequest(String qnaSystemId, String query, String filterString, String queryPlan, String properties) throws URISyntaxException {
         properties = properties == null ? "" : properties;
-        HttpRequest request = getHttpRequest(
+        return getHttpRequest(
                 filterString == null ? SEARCH_API : SEARCH_WITH_FILTER_API,
                 filterString == null
                         ? Map.of("systemId", qnaSystemId, "query", query, "properties", properties)
                         : Map.of("systemId", qnaSystemId, "query", query, "filter", filterString, "properties", properties),
                 queryPlan
                 );
-        long time = System.currentTimeMillis();
-        HttpResponse<String> response = getHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-        System.out.println("Time Taken = " + (System.currentTimeMillis() - time));
-        Gson gson = new Gson();
-        if (response.statusCode() != 200) {
-            return new RAGResponse(SEARCH, response, null);
+    }
+
+    private RAGResponse send(String responseType, HttpRequest request, Type payloadType) throws IOException, InterruptedException {
+        RequestTimings timings = new RequestTimings();
+        TransferStats stats = new TransferStats();
+        AdaptiveLimiter limiter = this.limiter;
+        AdaptiveLimiter.Permit permit = limiter == null ? null : limiter.acquire();
+        HttpResponse<String> response;
+        try {
+            HttpClient client = getHttpClient();
+            timings.markSend();
+            response = client.send(request, getBodyHandler(request, stats, timings));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            release(permit, timings, null, e);
+            throw e;
+        }
+        release(permit, timings, response, null);
+        return toRAGResponse(responseType, response, payloadType, stats, timings);
+    }
+
+    private CompletableFuture<RAGResponse> sendAsync(String responseType, HttpRequest request, Type payloadType) {
+        RequestTimings timings = new RequestTimings();
+        TransferStats stats = new TransferStats();
+        AdaptiveLimiter limiter = this.limiter;
+        CompletableFuture<AdaptiveLimiter.Permit> permitFuture = limiter == null
+                ? CompletableFuture.completedFuture(null)
+                : limiter.acquireAsync();
+        return permitFuture.thenCompose(permit -> {
+            CompletableFuture<HttpResponse<String>> future;
+            try {
+                HttpClient client = getHttpClient();
+                timings.markSend();
+                future = client.sendAsync(request, getBodyHandler(request, stats, timings));
+            } catch (RuntimeException e) {
+                release(permit, timings, null, e);
+                throw e;
+            }
+            return future.whenComplete((response, error) -> release(permit, timings, response, error));
+        }).thenApply(response -> toRAGResponse(responseType, response, payloadType, stats, timings));
+    }
+
+    private static HttpResponse.BodyHandler<String> getBodyHandler(HttpRequest request, TransferStats stats, RequestTimings timings) {
+        boolean encodingRequested = request.headers().firstValue("Accept-Encoding").isPresent();
+        return new TimingBodyHandler<>(new DecompressingBodyHandler<>(HttpResponse.BodyHandlers.ofString(), stats, encodingRequested), timings);
+    }
+
+    private static void release(AdaptiveLimiter.Permit permit, RequestTimings timings, HttpResponse<?> response, Throwable error) {
+        if (permit == null) {
+            return;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof HttpTimeoutException) {
+            permit.dropped();
+        } else if (cause != null) {
+            permit.ignore();
+        } else if (response.statusCode() == 429 || response.statusCode() == 503) {
+            permit.dropped();
         } else {
-            return new RAGResponse(SEARCH, response, gson.fromJson(response.body(), new TypeToken<Map<String, Object>>() {}.getType()));
+            permit.success(timings.getRoundTripNanos());
         }
     }
 
+    private static RAGResponse toRAGResponse(String responseType, HttpResponse<String> response, Type payloadType, TransferStats stats, RequestTimings timings) {
+        Map<String, ?> payload = null;
+        if (response.statusCode() == 200) {
+            Gson gson = new Gson();
+            payload = gson.fromJson(response.body(), payloadType);
+        }
+        timings.markDecoded();
+        return new RAGResponse(responseType, response, payload, stats, timings);
+    }
+
+    /**
+     * The client is built once and reused so pooled connections survive across calls on this instance.
+     */
     protected HttpClient getHttpClient() {
-        HttpClient.Builder builder = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(60));
-        configure(builder);
-        return builder.build();
+        HttpClient client = httpClient;
+        if (client == null) {
+            synchronized (this) {
+                client = httpClient;
+                if (client == null) {
+                    HttpClient.Builder builder = HttpClient.newBuilder()
+                            .connectTimeout(Duration.ofSeconds(60));
+                    configure(builder);
+                    client = builder.build();
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
     }
 
     protected void configure(HttpClient.Builder builder) {
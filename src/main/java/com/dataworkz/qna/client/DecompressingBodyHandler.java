@@ -0,0 +1,255 @@
+package com.dataworkz.qna.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Wraps another {@link HttpResponse.BodyHandler} and inflates {@code gzip} / {@code deflate} bodies as they
+ * stream in, so the wrapped handler only ever sees plain bytes. Bodies without a Content-Encoding are passed
+ * through untouched, and so are bodies in other encodings unless the request asked for compressed content, in which
+ * case an encoding that was not offered is an error. Byte counts on both sides are recorded in the supplied
+ * {@link TransferStats}.
+ */
+public class DecompressingBodyHandler<T> implements HttpResponse.BodyHandler<T> {
+    private final HttpResponse.BodyHandler<T> downstream;
+    private final TransferStats stats;
+    private final boolean encodingRequested;
+
+    public DecompressingBodyHandler(HttpResponse.BodyHandler<T> downstream, TransferStats stats) {
+        this(downstream, stats, false);
+    }
+
+    /**
+     * @param encodingRequested true if the request sent Accept-Encoding for gzip / deflate
+     */
+    public DecompressingBodyHandler(HttpResponse.BodyHandler<T> downstream, TransferStats stats, boolean encodingRequested) {
+        this.downstream = downstream;
+        this.stats = stats;
+        this.encodingRequested = encodingRequested;
+    }
+
+    @Override
+    public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo responseInfo) {
+        String encoding = responseInfo.headers().firstValue("Content-Encoding")
+                .map(s -> s.trim().toLowerCase(Locale.ROOT))
+                .orElse("identity");
+        if (encoding.equals("x-gzip")) {
+            encoding = "gzip";
+        }
+        stats.setContentEncoding(encoding);
+        if (!encoding.equals("gzip") && !encoding.equals("deflate") && !encoding.equals("identity")) {
+            if (encodingRequested) {
+                throw new UncheckedIOException(new IOException("Unsupported Content-Encoding : " + encoding));
+            }
+            // not asked for, so hand the body over as sent, as if this handler was not there
+            return new DecompressingBodySubscriber<>(downstream.apply(responseInfo), "identity", stats);
+        }
+        return new DecompressingBodySubscriber<>(downstream.apply(responseInfo), encoding, stats);
+    }
+
+    static class DecompressingBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private static final int CHUNK_SIZE = 8192;
+        private static final int GZIP_HEADER_MIN = 10;
+        private static final int GZIP_TRAILER = 8;
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final HttpResponse.BodySubscriber<T> downstream;
+        private final TransferStats stats;
+        private final boolean gzip;
+        private final Inflater inflater;
+        private final CRC32 crc = new CRC32();
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        private boolean headerDone;
+        private boolean done;
+        private long wireBytes;
+        private Flow.Subscription subscription;
+
+        DecompressingBodySubscriber(HttpResponse.BodySubscriber<T> downstream, String encoding, TransferStats stats) {
+            this.downstream = downstream;
+            this.stats = stats;
+            this.gzip = encoding.equals("gzip");
+            // deflate is zlib-wrapped per RFC 9110; gzip carries its own header so the inflater runs raw
+            this.inflater = encoding.equals("identity") ? null : new Inflater(gzip);
+            this.headerDone = !gzip;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return downstream.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            downstream.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (done) {
+                return;
+            }
+            if (inflater == null) {
+                for (ByteBuffer item : items) {
+                    stats.addWireBytes(item.remaining());
+                    stats.addBodyBytes(item.remaining());
+                }
+                downstream.onNext(items);
+                return;
+            }
+            List<ByteBuffer> inflated = new ArrayList<>();
+            try {
+                for (ByteBuffer item : items) {
+                    wireBytes += item.remaining();
+                    stats.addWireBytes(item.remaining());
+                    inflate(item, inflated);
+                }
+            } catch (IOException | DataFormatException e) {
+                done = true;
+                inflater.end();
+                subscription.cancel();
+                downstream.onError(e);
+                return;
+            }
+            // always forward one onNext per upstream onNext so demand stays in step
+            downstream.onNext(inflated);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (inflater != null) {
+                inflater.end();
+            }
+            downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (inflater != null) {
+                try {
+                    checkComplete();
+                } catch (IOException e) {
+                    downstream.onError(e);
+                    return;
+                } finally {
+                    inflater.end();
+                }
+            }
+            downstream.onComplete();
+        }
+
+        private void inflate(ByteBuffer input, List<ByteBuffer> output) throws IOException, DataFormatException {
+            while (input.hasRemaining()) {
+                if (!headerDone) {
+                    header.write(input.get());
+                    headerDone = isGzipHeaderComplete(header.toByteArray());
+                } else if (inflater.finished()) {
+                    if (!gzip || trailer.size() >= GZIP_TRAILER) {
+                        throw new IOException("Unexpected data after end of compressed stream");
+                    }
+                    trailer.write(input.get());
+                } else {
+                    inflater.setInput(input);
+                    while (!inflater.needsInput() && !inflater.finished()) {
+                        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                        int n = inflater.inflate(chunk);
+                        if (n == 0 && inflater.needsDictionary()) {
+                            throw new DataFormatException("Compressed stream requires a preset dictionary");
+                        }
+                        if (n > 0) {
+                            chunk.flip();
+                            crc.update(chunk.duplicate());
+                            stats.addBodyBytes(n);
+                            output.add(chunk);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void checkComplete() throws IOException {
+            if (wireBytes == 0) {
+                // proxies send Content-Encoding with an empty body on e.g. 204, 304 and 401 responses
+                return;
+            }
+            if (!headerDone || !inflater.finished()) {
+                throw new IOException("Compressed response body was truncated");
+            }
+            if (gzip) {
+                byte[] t = trailer.toByteArray();
+                if (t.length != GZIP_TRAILER) {
+                    throw new IOException("gzip trailer was truncated");
+                }
+                if (readIntLE(t, 0) != crc.getValue() || readIntLE(t, 4) != (inflater.getBytesWritten() & 0xffffffffL)) {
+                    throw new IOException("gzip trailer does not match decompressed content");
+                }
+            }
+        }
+
+        private static boolean isGzipHeaderComplete(byte[] h) throws IOException {
+            if (h.length < GZIP_HEADER_MIN) {
+                return false;
+            }
+            if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || h[2] != 8) {
+                throw new IOException("Not in gzip format");
+            }
+            int flags = h[3] & 0xff;
+            int pos = GZIP_HEADER_MIN;
+            if ((flags & FEXTRA) != 0) {
+                if (h.length < pos + 2) {
+                    return false;
+                }
+                pos += 2 + ((h[pos] & 0xff) | ((h[pos + 1] & 0xff) << 8));
+            }
+            if ((flags & FNAME) != 0) {
+                pos = skipZeroTerminated(h, pos);
+            }
+            if ((flags & FCOMMENT) != 0) {
+                pos = skipZeroTerminated(h, pos);
+            }
+            if ((flags & FHCRC) != 0) {
+                pos = pos < 0 ? pos : pos + 2;
+            }
+            return pos >= 0 && h.length >= pos;
+        }
+
+        private static int skipZeroTerminated(byte[] h, int pos) {
+            if (pos < 0) {
+                return pos;
+            }
+            for (int i = pos; i < h.length; i++) {
+                if (h[i] == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static long readIntLE(byte[] b, int off) {
+            return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8) | ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.dataworkz.qna.client;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Stands in for the HTTP response when an answer is served from a {@link NearDuplicateIndex} without calling the service.
+ */
+class IndexedHttpResponse implements HttpResponse<String> {
+    private final HttpRequest request;
+    private final String body;
+
+    IndexedHttpResponse(HttpRequest request, String body) {
+        this.request = request;
+        this.body = body;
+    }
+
+    @Override
+    public int statusCode() {
+        return 200;
+    }
+
+    @Override
+    public HttpRequest request() {
+        return request;
+    }
+
+    @Override
+    public Optional<HttpResponse<String>> previousResponse() {
+        return Optional.empty();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return HttpHeaders.of(Map.of(), (name, value) -> true);
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+        return Optional.empty();
+    }
+
+    @Override
+    public URI uri() {
+        return request.uri();
+    }
+
+    @Override
+    public HttpClient.Version version() {
+        return HttpClient.Version.HTTP_1_1;
+    }
+
+    @Override
+    public String toString() {
+        return "(near duplicate index) " + request.method() + " " + request.uri() + " 200";
+    }
+}
@@ -0,0 +1,533 @@
+package com.dataworkz.qna.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Finds previously answered questions that are near duplicates of a new one, e.g. differing only in case,
+ * punctuation, word order, articles or politeness words.
+ * <p>
+ * Questions are lower cased, stripped of punctuation, articles and politeness words and turned into a set of
+ * shingles - the words plus the character trigrams of each word, so word order does not matter and small typos cost
+ * little. Verbs and modals are kept, so "what was the revenue" and "what will the revenue be" stay apart. Words
+ * containing digits are only shingled whole, and two questions only match if they hold the same set of them, so
+ * "revenue in 2022" never answers "revenue in 2023". A 128 value MinHash signature estimates the Jaccard similarity
+ * of two shingle sets to within about 0.04 around the default threshold, and 16 LSH bands of 8 values find
+ * candidates without comparing against every entry. Candidates are found reliably from a similarity of
+ * about 0.8 up. Only entries with the same scope (QnA system, LLM, filter, properties) can match.
+ * <p>
+ * Each entry keeps the question, the answer text and the context links - what is needed to serve it again - not
+ * the whole response. Signatures, number keys and bucket chains live in flat int / long arrays. The index holds at
+ * most {@code capacity} entries and evicts with the clock algorithm, so entries that were matched recently survive
+ * longer. Thread safe.
+ */
+public class NearDuplicateIndex {
+    private static final int NUM_HASHES = 128;
+    private static final int BANDS = 16;
+    private static final int ROWS = NUM_HASHES / BANDS;
+    private static final int MAGIC = 0x44574E44;
+    private static final int VERSION = 3;
+    private static final int EMPTY = -2;
+    private static final int NONE = -1;
+    private static final Set<String> FILLER_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "the", "please", "pls", "kindly", "hi", "hello", "hey", "thanks", "thank"));
+    private static final int[] SEEDS = new int[NUM_HASHES];
+
+    static {
+        // fixed seeds so signatures stay valid across runs and in saved indexes
+        long x = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            x += 0x9E3779B97F4A7C15L;
+            SEEDS[i] = (int) mix64(x);
+        }
+    }
+
+    private final int capacity;
+    private final double threshold;
+    private final int[] signatures;
+    private final String[] scopes;
+    private final String[] questions;
+    private final String[] answers;
+    // context links of an entry, newline separated
+    private final String[] links;
+    private final long[] numberKeys;
+    private final boolean[] referenced;
+    private final int[] bucketNext;
+    private long[] tableKeys;
+    private int[] tableHeads;
+    private int tableUsed;
+    private int size;
+    private int hand;
+
+    private long lookups;
+    private long exactMatches;
+    private long nearMatches;
+    private long numberMismatches;
+    private final long[] similarityHistogram = new long[11];
+
+    /**
+     * @param capacity most entries kept
+     * @param threshold smallest estimated Jaccard similarity, 0 to 1, that counts as a match
+     */
+    public NearDuplicateIndex(int capacity, double threshold) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be in (0, 1]");
+        }
+        this.capacity = capacity;
+        this.threshold = threshold;
+        this.signatures = new int[capacity * NUM_HASHES];
+        this.scopes = new String[capacity];
+        this.questions = new String[capacity];
+        this.answers = new String[capacity];
+        this.links = new String[capacity];
+        this.numberKeys = new long[capacity];
+        this.referenced = new boolean[capacity];
+        this.bucketNext = new int[capacity * BANDS];
+        resetTable();
+    }
+
+    public static String scope(String qnaSystemId, String llmProviderId, String filter, String properties) {
+        return qnaSystemId + "\u0000" + llmProviderId + "\u0000" + (filter == null ? "" : filter) + "\u0000" + (properties == null ? "" : properties);
+    }
+
+    /**
+     * @return the most similar earlier question in the scope at or above the threshold, null if there is none
+     */
+    public synchronized Match lookup(String scope, String question) {
+        String[] words = words(question);
+        int[] signature = signature(words);
+        if (signature == null) {
+            return null;
+        }
+        long numberKey = numberKey(words);
+        lookups++;
+        int best = NONE;
+        double bestSimilarity = 0;
+        boolean numberMismatch = false;
+        for (int b = 0; b < BANDS; b++) {
+            int idx = find(bandKey(scope, signature, 0, b));
+            if (idx < 0) {
+                continue;
+            }
+            for (int slot = tableHeads[idx]; slot != NONE; slot = bucketNext[slot * BANDS + b]) {
+                if (slot == best || !scopes[slot].equals(scope)) {
+                    continue;
+                }
+                double similarity = similarity(signature, slot);
+                if (numberKeys[slot] != numberKey) {
+                    numberMismatch |= similarity >= threshold;
+                } else if (similarity > bestSimilarity) {
+                    bestSimilarity = similarity;
+                    best = slot;
+                }
+            }
+        }
+        similarityHistogram[(int) Math.floor(bestSimilarity * 10)]++;
+        if (numberMismatch && bestSimilarity < threshold) {
+            numberMismatches++;
+        }
+        if (best == NONE || bestSimilarity < threshold) {
+            return null;
+        }
+        if (bestSimilarity == 1.0) {
+            exactMatches++;
+        } else {
+            nearMatches++;
+        }
+        referenced[best] = true;
+        return new Match(questions[best], answers[best], splitLinks(links[best]), bestSimilarity);
+    }
+
+    /**
+     * Remember the answer and context links for a question. Questions with nothing left after normalization are
+     * not indexed.
+     */
+    public synchronized void add(String scope, String question, String answer, List<String> contextLinks) {
+        String[] words = words(question);
+        int[] signature = signature(words);
+        if (signature != null) {
+            insert(scope, question, answer == null ? "" : answer, String.join("\n", contextLinks), numberKey(words), signature);
+        }
+    }
+
+    private int insert(String scope, String question, String answer, String entryLinks, long numberKey, int[] signature) {
+        int slot;
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % capacity;
+            }
+            slot = hand;
+            hand = (hand + 1) % capacity;
+            unlink(slot);
+        }
+        System.arraycopy(signature, 0, signatures, slot * NUM_HASHES, NUM_HASHES);
+        scopes[slot] = scope;
+        questions[slot] = question;
+        answers[slot] = answer;
+        links[slot] = entryLinks;
+        numberKeys[slot] = numberKey;
+        referenced[slot] = false;
+        link(slot);
+        return slot;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getMatches() {
+        return exactMatches + nearMatches;
+    }
+
+    public synchronized double getMatchRate() {
+        return lookups == 0 ? 0 : (double) (exactMatches + nearMatches) / lookups;
+    }
+
+    /**
+     * @return lookup and match counts plus how often the best candidate fell in each 0.1 wide similarity range
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                "entries=%d lookups=%d matches=%d (%.1f%%) exact=%d near=%d number mismatches=%d threshold=%.2f best similarity:",
+                size, lookups, exactMatches + nearMatches, getMatchRate() * 100, exactMatches, nearMatches, numberMismatches, threshold));
+        for (int i = 0; i < similarityHistogram.length; i++) {
+            if (similarityHistogram[i] > 0) {
+                sb.append(String.format(Locale.ROOT, " %.1f=%d", i / 10.0, similarityHistogram[i]));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the entries, oldest first, to a gzip file. The file is replaced atomically where supported.
+     */
+    public synchronized void save(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(NUM_HASHES);
+            out.writeInt(size);
+            int start = size < capacity ? 0 : hand;
+            for (int i = 0; i < size; i++) {
+                int slot = (start + i) % capacity;
+                writeString(out, scopes[slot]);
+                writeString(out, questions[slot]);
+                writeString(out, answers[slot]);
+                writeString(out, links[slot]);
+                out.writeLong(numberKeys[slot]);
+                out.writeBoolean(referenced[slot]);
+                for (int h = 0; h < NUM_HASHES; h++) {
+                    out.writeInt(signatures[slot * NUM_HASHES + h]);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Loads an index written by {@link #save(Path)}, or returns an empty one if the file does not exist. If the file
+     * holds more than {@code capacity} entries the oldest are evicted.
+     */
+    public static NearDuplicateIndex load(Path path, int capacity, double threshold) throws IOException {
+        NearDuplicateIndex index = new NearDuplicateIndex(capacity, threshold);
+        if (!Files.exists(path)) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != NUM_HASHES) {
+                throw new IOException("Not a near duplicate index or an incompatible version : " + path);
+            }
+            int count = in.readInt();
+            int[] signature = new int[NUM_HASHES];
+            for (int i = 0; i < count; i++) {
+                String scope = readString(in);
+                String question = readString(in);
+                String answer = readString(in);
+                String entryLinks = readString(in);
+                long numberKey = in.readLong();
+                boolean wasReferenced = in.readBoolean();
+                for (int h = 0; h < NUM_HASHES; h++) {
+                    signature[h] = in.readInt();
+                }
+                synchronized (index) {
+                    int slot = index.insert(scope, question, answer, entryLinks, numberKey, signature);
+                    index.referenced[slot] = wasReferenced;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private double similarity(int[] signature, int slot) {
+        int equal = 0;
+        int offset = slot * NUM_HASHES;
+        for (int h = 0; h < NUM_HASHES; h++) {
+            if (signatures[offset + h] == signature[h]) {
+                equal++;
+            }
+        }
+        return (double) equal / NUM_HASHES;
+    }
+
+    private static String[] words(String question) {
+        // keep 3.2, 1,000 and 2024-01-05 as one number each
+        return question.toLowerCase(Locale.ROOT)
+                .replaceAll("(\\p{N})[.,:/-](?=\\p{N})", "$1_")
+                .split("[^\\p{L}\\p{N}_]+");
+    }
+
+    static int[] signature(String[] words) {
+        int[] signature = new int[NUM_HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        boolean any = false;
+        for (String word : words) {
+            if (word.isEmpty() || FILLER_WORDS.contains(word)) {
+                continue;
+            }
+            any = true;
+            update(signature, word.hashCode());
+            if (hasDigit(word)) {
+                // 2022 and 2023 share most trigrams but are different questions
+                continue;
+            }
+            String padded = "^" + word + "$";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                update(signature, padded.substring(i, i + 3).hashCode() * 0x01000193);
+            }
+        }
+        return any ? signature : null;
+    }
+
+    /**
+     * @return a hash of the set of words that contain digits, 0 when there are none
+     */
+    static long numberKey(String[] words) {
+        TreeSet<String> numbers = new TreeSet<>();
+        for (String word : words) {
+            if (hasDigit(word)) {
+                numbers.add(word);
+            }
+        }
+        long key = 0;
+        for (String number : numbers) {
+            key = mix64(key * 31 + number.hashCode()) + 1;
+        }
+        return key;
+    }
+
+    private static boolean hasDigit(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.isDigit(word.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> splitLinks(String entryLinks) {
+        return entryLinks.isEmpty() ? Collections.emptyList() : Arrays.asList(entryLinks.split("\n"));
+    }
+
+    private static void update(int[] signature, int shingle) {
+        for (int h = 0; h < NUM_HASHES; h++) {
+            int value = mix32(shingle ^ SEEDS[h]);
+            if (value < signature[h]) {
+                signature[h] = value;
+            }
+        }
+    }
+
+    private static long bandKey(String scope, int[] signature, int offset, int band) {
+        long key = scope.hashCode() * 31L + band;
+        for (int r = 0; r < ROWS; r++) {
+            key = key * 0x100000001B3L + signature[offset + band * ROWS + r];
+        }
+        return mix64(key);
+    }
+
+    private void link(int slot) {
+        if (tableUsed + BANDS > tableKeys.length * 3 / 4) {
+            // the rebuild links every live slot, this one included
+            rebuildTable();
+            return;
+        }
+        for (int b = 0; b < BANDS; b++) {
+            int idx = findOrInsert(bandKey(scopes[slot], signatures, slot * NUM_HASHES, b));
+            bucketNext[slot * BANDS + b] = tableHeads[idx];
+            tableHeads[idx] = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        for (int b = 0; b < BANDS; b++) {
+            int idx = find(bandKey(scopes[slot], signatures, slot * NUM_HASHES, b));
+            if (idx < 0) {
+                continue;
+            }
+            int prev = NONE;
+            for (int cur = tableHeads[idx]; cur != NONE; prev = cur, cur = bucketNext[cur * BANDS + b]) {
+                if (cur == slot) {
+                    if (prev == NONE) {
+                        tableHeads[idx] = bucketNext[cur * BANDS + b];
+                    } else {
+                        bucketNext[prev * BANDS + b] = bucketNext[cur * BANDS + b];
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private int find(long key) {
+        int mask = tableKeys.length - 1;
+        for (int idx = (int) key & mask; tableHeads[idx] != EMPTY; idx = (idx + 1) & mask) {
+            if (tableKeys[idx] == key) {
+                return idx;
+            }
+        }
+        return NONE;
+    }
+
+    // emptied buckets keep their key, so keys only go away when the table is rebuilt
+    private int findOrInsert(long key) {
+        int mask = tableKeys.length - 1;
+        int idx = (int) key & mask;
+        for (; tableHeads[idx] != EMPTY; idx = (idx + 1) & mask) {
+            if (tableKeys[idx] == key) {
+                return idx;
+            }
+        }
+        tableKeys[idx] = key;
+        tableHeads[idx] = NONE;
+        tableUsed++;
+        return idx;
+    }
+
+    private void resetTable() {
+        int length = Integer.highestOneBit(Math.max(16, capacity * BANDS * 2) - 1) << 1;
+        tableKeys = new long[length];
+        tableHeads = new int[length];
+        Arrays.fill(tableHeads, EMPTY);
+        tableUsed = 0;
+    }
+
+    private void rebuildTable() {
+        resetTable();
+        for (int slot = 0; slot < size; slot++) {
+            for (int b = 0; b < BANDS; b++) {
+                int idx = findOrInsert(bandKey(scopes[slot], signatures, slot * NUM_HASHES, b));
+                bucketNext[slot * BANDS + b] = tableHeads[idx];
+                tableHeads[idx] = slot;
+            }
+        }
+    }
+
+    private static int mix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB33FL;
+        return z ^ (z >>> 33);
+    }
+
+    public static class Match {
+        private final String question;
+        private final String answer;
+        private final List<String> links;
+        private final double similarity;
+
+        Match(String question, String answer, List<String> links, double similarity) {
+            this.question = question;
+            this.answer = answer;
+            this.links = links;
+            this.similarity = similarity;
+        }
+
+        /**
+         * @return the earlier question that matched
+         */
+        public String getQuestion() {
+            return question;
+        }
+
+        /**
+         * @return the answer to the earlier question
+         */
+        public String getAnswer() {
+            return answer;
+        }
+
+        /**
+         * @return links of the context the earlier answer was based on, in order
+         */
+        public List<String> getLinks() {
+            return links;
+        }
+
+        /**
+         * @return estimated Jaccard similarity of the two questions
+         */
+        public double getSimilarity() {
+            return similarity;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s (similarity %.2f)", question, similarity);
+        }
+    }
+}
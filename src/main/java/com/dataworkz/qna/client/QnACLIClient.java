@@ -2,16 +2,41 @@ package com.dataworkz.qna.client;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import picocli.CommandLine;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
+import java.time.Duration;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
@@ -26,7 +51,10 @@ import static com.dataworkz.qna.client.QnACLIClient.*;
             DoQuestionCommand.class,
             DoListQuestionsCommand.class,
             DoGetQuestionCommand.class,
-            DoSemanticSearchCommand.class
+            DoSemanticSearchCommand.class,
+            DoCompareRunsCommand.class,
+            DoShellCommand.class,
+            DoServeCommand.class
         }
 )
 public class QnACLIClient {
@@ -55,6 +83,307 @@ public class QnACLIClient {
         }
         System.exit(exitCode);
     }
+
+    /**
+     * Runs one command line in this JVM with stdout / stderr sent to the given streams. Commands print
+     * through System.out, so runs are serialized.
+     */
+    static synchronized int execute(String[] args, PrintStream out, PrintStream err) {
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(out);
+        System.setErr(err);
+        try {
+            CommandLine commandLine = new CommandLine(new QnACLIClient());
+            commandLine.setOut(new PrintWriter(out, true));
+            commandLine.setErr(new PrintWriter(err, true));
+            return commandLine.execute(args);
+        } catch (Exception ex) {
+            err.println("Failed to execute : " + ex.getMessage());
+            ex.printStackTrace(err);
+            return 1;
+        } finally {
+            out.flush();
+            err.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+    }
+
+    /**
+     * Splits a command line into arguments. Supports single quotes, double quotes and backslash escapes.
+     */
+    static String[] splitArgs(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '\\' && i + 1 < line.length()) {
+                current.append(line.charAt(++i));
+                inArg = true;
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                current.append(c);
+                inArg = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unterminated quote in : " + line);
+        }
+        if (inArg) {
+            args.add(current.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+}
+
+@CommandLine.Command(name="compare-runs", mixinStandardHelpOptions = true,
+        description = "Compare two runs of the same input file written with -f jsonl. Exits with 1 when the candidate regressed.")
+class DoCompareRunsCommand implements Callable<Integer> {
+    @CommandLine.Parameters(index = "0", description = "Baseline run output")
+    private File baseline;
+    @CommandLine.Parameters(index = "1", description = "Candidate run output")
+    private File candidate;
+    @CommandLine.Option(names = {"-alpha"}, description = "Significance level of the slowdown test", defaultValue = "0.05")
+    private double alpha;
+    @CommandLine.Option(names = {"-slowdown-pct"}, description = "Latency increase in percent flagged per question and at p95", defaultValue = "20")
+    private double slowdownPct;
+    @CommandLine.Option(names = {"-min-delta-ms"}, description = "Smallest per question latency increase that is flagged", defaultValue = "100")
+    private double minDeltaMs;
+
+    @Override
+    public Integer call() throws Exception {
+        for (File f : List.of(baseline, candidate)) {
+            if (!f.exists() || !f.canRead()) {
+                throw new IllegalArgumentException("Run output does not exist or cannot be read : " + f.getAbsolutePath());
+            }
+        }
+        RunComparison comparison = new RunComparison(alpha, slowdownPct, minDeltaMs);
+        boolean regressed = comparison.compare(baseline.toPath(), candidate.toPath(), System.out);
+        return regressed ? 1 : 0;
+    }
+}
+
+@CommandLine.Command(name="shell", mixinStandardHelpOptions = true,
+        description = "Read commands from stdin or a file, one per line, and run them in this JVM. Use exit or quit to stop.")
+class DoShellCommand implements Callable<Integer> {
+    @CommandLine.Option(names = {"-if", "-input-file"}, description = "Read commands from this file instead of stdin")
+    private String inputFile;
+
+    @Override
+    public Integer call() throws Exception {
+        boolean interactive = inputFile == null && System.console() != null;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        BufferedReader reader = inputFile == null
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(new File(inputFile).toPath(), StandardCharsets.UTF_8);
+        int exitCode = 0;
+        try (reader) {
+            while (true) {
+                if (interactive) {
+                    out.print("qna> ");
+                    out.flush();
+                }
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.equals("exit") || line.equals("quit")) {
+                    break;
+                }
+                exitCode = runLine(line, out, err);
+            }
+        }
+        return exitCode;
+    }
+
+    static int runLine(String line, PrintStream out, PrintStream err) {
+        String[] args;
+        try {
+            args = splitArgs(line);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 2;
+        }
+        return runArgs(args, out, err);
+    }
+
+    static int runArgs(String[] args, PrintStream out, PrintStream err) {
+        if (args.length > 0 && (args[0].equals("shell") || args[0].equals("serve"))) {
+            err.println(args[0] + " cannot be run from inside shell or serve");
+            return 2;
+        }
+        return QnACLIClient.execute(args, out, err);
+    }
+}
+
+@CommandLine.Command(name="serve", mixinStandardHelpOptions = true,
+        description = "Listen on a loopback TCP port and run one command per connection in this JVM. "
+                + "A client sends the token from the token file on the first line, its working directory on the second and "
+                + "the command line on the third. Relative file paths are resolved against that directory; "
+                + "output is returned followed by a final '#exit <code>' line.")
+class DoServeCommand implements Callable<Integer> {
+    static final String EXIT_PREFIX = "#exit ";
+    static final String DEFAULT_TOKEN_FILE = System.getProperty("user.home") + File.separator + ".qna-client-serve.token";
+    private static final int CONNECTION_THREADS = 8;
+    // options whose value is a file, resolved against the client's working directory
+    private static final Set<String> PATH_OPTIONS = new HashSet<>(Arrays.asList(
+            "-cf", "-config-file", "-if", "-input-file", "-of", "-output-file", "-tf", "-timings-file", "-dd", "-dedup-index"));
+
+    @CommandLine.Option(names = {"-port"}, description = "Port to listen on", defaultValue = "7700")
+    int port;
+    @CommandLine.Option(names = {"-bind"}, description = "Loopback address to bind to", defaultValue = "127.0.0.1")
+    String bindAddress;
+    @CommandLine.Option(names = {"-token-file"}, description = "File the client token is written to, readable by the current user only. Defaults to ~/.qna-client-serve.token")
+    String tokenFile = DEFAULT_TOKEN_FILE;
+    @CommandLine.Option(names = {"-read-timeout-secs"}, description = "Seconds to wait for a client to send its command", defaultValue = "10")
+    int readTimeoutSecs;
+
+    private byte[] token;
+    // System.err is redirected into a client's output while a command runs
+    private PrintStream log;
+
+    @Override
+    public Integer call() throws Exception {
+        InetAddress address = InetAddress.getByName(bindAddress);
+        if (!address.isLoopbackAddress()) {
+            // commands read and write files as the server user, so they must not be reachable from other hosts
+            throw new IllegalArgumentException("serve only binds to loopback addresses, not " + bindAddress);
+        }
+        log = System.err;
+        token = writeToken(Paths.get(tokenFile));
+        ExecutorService connections = Executors.newFixedThreadPool(CONNECTION_THREADS, r -> {
+            Thread t = new Thread(r, "qna-serve");
+            t.setDaemon(true);
+            return t;
+        });
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(address, port));
+            System.out.println("Listening on " + server.getLocalSocketAddress() + ", token in " + tokenFile);
+            while (true) {
+                Socket socket = server.accept();
+                // a client that stalls only holds its own connection thread until the read timeout
+                connections.execute(() -> {
+                    try (socket) {
+                        handle(socket);
+                    } catch (IOException e) {
+                        log.println("Connection failed : " + e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        socket.setSoTimeout(readTimeoutSecs * 1000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String clientToken = reader.readLine();
+        String workingDir = reader.readLine();
+        String line = reader.readLine();
+        if (clientToken == null || workingDir == null || line == null) {
+            return;
+        }
+        PrintStream socketOut = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(token, clientToken.trim().getBytes(StandardCharsets.UTF_8))) {
+            socketOut.println("Invalid token");
+            socketOut.println(EXIT_PREFIX + 2);
+            socketOut.flush();
+            return;
+        }
+        // commands run one at a time; buffer the output so a client that reads slowly does not hold up the next one
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+        int exitCode;
+        try {
+            String[] args = resolvePaths(splitArgs(line.trim()), Paths.get(workingDir.trim()));
+            exitCode = DoShellCommand.runArgs(args, out, out);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+            exitCode = 2;
+        }
+        out.println(EXIT_PREFIX + exitCode);
+        out.flush();
+        buffer.writeTo(socketOut);
+        socketOut.flush();
+    }
+
+    /**
+     * Makes relative file arguments absolute against the client's working directory, since the server runs in its own.
+     */
+    static String[] resolvePaths(String[] args, Path workingDir) {
+        if (!workingDir.isAbsolute()) {
+            throw new IllegalArgumentException("Client working directory must be absolute : " + workingDir);
+        }
+        String[] resolved = args.clone();
+        // compare-runs takes its two files as positional parameters
+        boolean positionalFiles = args.length > 0 && args[0].equals("compare-runs");
+        for (int i = 1; i < resolved.length; i++) {
+            String arg = resolved[i];
+            int eq = arg.indexOf('=');
+            if (eq > 0 && PATH_OPTIONS.contains(arg.substring(0, eq))) {
+                resolved[i] = arg.substring(0, eq + 1) + resolve(arg.substring(eq + 1), workingDir);
+            } else if (PATH_OPTIONS.contains(arg) && i + 1 < resolved.length) {
+                resolved[i + 1] = resolve(resolved[i + 1], workingDir);
+                i++;
+            } else if (positionalFiles && !arg.startsWith("-")) {
+                resolved[i] = resolve(arg, workingDir);
+            } else if (positionalFiles && i + 1 < resolved.length && !resolved[i + 1].startsWith("-")) {
+                // value of a non-file option
+                i++;
+            }
+        }
+        return resolved;
+    }
+
+    private static String resolve(String path, Path workingDir) {
+        return workingDir.resolve(path).normalize().toString();
+    }
+
+    /**
+     * Write a new random token to the file, readable by the current user only where the file system supports it.
+     */
+    private static byte[] writeToken(Path file) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String value = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        Files.deleteIfExists(file);
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file);
+        }
+        Files.writeString(file, value + System.lineSeparator(), StandardCharsets.UTF_8);
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
 }
 
 @CommandLine.Command(name="ask", mixinStandardHelpOptions = true, description = "Ask a question")
@@ -71,10 +400,26 @@ class DoQuestionCommand extends BaseQnAClient implements Callable<Integer> {
     private String queryPlan;
     @CommandLine.Option(names = {"-ch", "-conversation-history"}, description = "Conversation History Json Array")
     private String conversationHistory;
+    @CommandLine.Option(names = {"-cv", "-conversation"}, description = "Ask the input file questions as one conversation, each with the previous answers as history")
+    private boolean conversation;
+    @CommandLine.Option(names = {"-ht", "-history-turns"}, description = "Most turns of history to send in -conversation mode")
+    private Integer historyTurns;
+    @CommandLine.Option(names = {"-hb", "-history-bytes"}, description = "Most bytes of history to send in -conversation mode")
+    private Long historyBytes;
+    @CommandLine.Option(names = {"-dd", "-dedup-index"}, description = "Near duplicate question index file. Created if missing and saved after the run.")
+    private String dedupIndexFile;
+    @CommandLine.Option(names = {"-dt", "-dedup-threshold"}, description = "Similarity, 0 to 1, at which questions count as near duplicates", defaultValue = "0.85")
+    private double dedupThreshold;
+    @CommandLine.Option(names = {"-dc", "-dedup-capacity"}, description = "Most questions kept in the near duplicate index", defaultValue = "10000")
+    private int dedupCapacity;
+    @CommandLine.Option(names = {"-dds", "-dedup-serve"}, description = "Answer near duplicates from the index instead of only flagging them")
+    private boolean dedupServe;
     @CommandLine.Option(names = {"-p", "-probe"}, description = "Display probe data")
     private boolean showProbeData;
     @CommandLine.Option(names = {"-ps", "-properties"}, description = "Pass properties")
     private String properties;
+    private ConversationSession session;
+    private NearDuplicateIndex dedupIndex;
 
     @Override
     protected void loadOptions() {
@@ -89,6 +434,9 @@ class DoQuestionCommand extends BaseQnAClient implements Callable<Integer> {
         if (!isOptionPresent(questionText) && !isOptionPresent(inputFile)) {
             throw new IllegalArgumentException("Ask your question using the -q option");
         }
+        if (conversation && isOptionPresent(conversationHistory)) {
+            throw new IllegalArgumentException("-conversation-history cannot be combined with -conversation");
+        }
     }
 
     @Override
@@ -98,30 +446,80 @@ class DoQuestionCommand extends BaseQnAClient implements Callable<Integer> {
 
     @Override
     protected RAGResponse doCallImpl(DataworkzRAG dw) throws URISyntaxException, IOException, InterruptedException {
+        loadDedupIndex(dw);
+        if (conversation) {
+            return getSession(dw).ask(questionText);
+        }
         String body = buildBody(queryPlan, conversationHistory);
-        properties = properties == null ? "" : properties;
-        properties += (properties.isEmpty() ? "" : ";") + "include_probe=" + showProbeData;
-        return dw.askQuestion(qnaSystemId, llmId, questionText, filterString, body, properties);
+        return dw.askQuestion(qnaSystemId, llmId, questionText, filterString, body, getRequestProperties());
     }
 
-    protected String buildBody(String queryPlan, String conversationHistory) {
-        StringBuilder builder = new StringBuilder();
-        if (queryPlan != null) {
-            builder.append("{ \"queryPlan\": ").append(queryPlan);
+    @Override
+    protected CompletableFuture<RAGResponse> doCallAsync(DataworkzRAG dw) throws URISyntaxException, IOException, InterruptedException {
+        if (conversation) {
+            // each question needs the previous answer
+            return CompletableFuture.completedFuture(doCallImpl(dw));
         }
-        if (conversationHistory != null) {
-            if (queryPlan == null) {
-                builder.append("{ ");
-            } else {
-                builder.append(", ");
+        loadDedupIndex(dw);
+        String body = buildBody(queryPlan, conversationHistory);
+        return dw.askQuestionAsync(qnaSystemId, llmId, questionText, filterString, body, getRequestProperties());
+    }
+
+    private void loadDedupIndex(DataworkzRAG dw) throws IOException {
+        if (dedupIndex == null && isOptionPresent(dedupIndexFile)) {
+            dedupIndex = NearDuplicateIndex.load(new File(dedupIndexFile).toPath(), dedupCapacity, dedupThreshold);
+            dw.setNearDuplicateIndex(dedupIndex, dedupServe);
+        }
+    }
+
+    @Override
+    protected void afterRun(DataworkzRAG dw) throws IOException {
+        if (dedupIndex != null) {
+            dw.setNearDuplicateIndex(null, false);
+            dedupIndex.save(new File(dedupIndexFile).toPath());
+            System.out.println("Near duplicate index : " + dedupIndex.getStats());
+        }
+    }
+
+    private ConversationSession getSession(DataworkzRAG dw) {
+        if (session == null) {
+            session = new ConversationSession(dw, qnaSystemId, llmId);
+            session.setFilter(filterString);
+            session.setQueryPlan(queryPlan);
+            session.setProperties(getRequestProperties());
+            if (historyTurns != null) {
+                session.setMaxTurns(historyTurns);
             }
-            builder.append("\"conversationHistory\": ").append(conversationHistory).append(" }");
-        } else {
+            if (historyBytes != null) {
+                session.setMaxHistoryBytes(historyBytes);
+            }
+        }
+        return session;
+    }
+
+    private String getRequestProperties() {
+        String props = properties == null ? "" : properties;
+        return props + (props.isEmpty() ? "" : ";") + "include_probe=" + showProbeData;
+    }
+
+    protected String buildBody(String queryPlan, String conversationHistory) {
+        if (queryPlan == null && conversationHistory == null) {
+            return "";
+        }
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
             if (queryPlan != null) {
-                builder.append(" }");
+                writer.name("queryPlan").jsonValue(queryPlan);
+            }
+            if (conversationHistory != null) {
+                writer.name("conversationHistory").jsonValue(conversationHistory);
             }
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return builder.toString();
+        return out.toString();
     }
 
     @Override
@@ -285,7 +683,8 @@ class DoGetQuestionCommand extends BaseQnAClient implements Callable<Integer> {
             throw new IllegalStateException("Unexpected response");
         }
         Gson gson = new Gson();
-        LinkedHashMap<String, Object> llmResponseObj = gson.fromJson(llmResponse, new TypeToken<>() {});
+        LinkedHashMap<String, Object> llmResponseObj = gson.fromJson(llmResponse,
+                TypeToken.getParameterized(LinkedHashMap.class, String.class, Object.class).getType());
         List<Map<String, String>> context = (List<Map<String, String>>) llmResponseObj.get("context");
         List<String> links = context.stream().map(cMap -> cMap.get("link")).collect(Collectors.toList());
         llmResponseObj.put("links", links.toString());
@@ -340,9 +739,17 @@ class DoSemanticSearchCommand extends BaseQnAClient implements Callable<Integer>
 
     @Override
     protected RAGResponse doCallImpl(DataworkzRAG dw) throws URISyntaxException, IOException, InterruptedException {
-        properties = properties == null ? "" : properties;
-        properties += (properties.isEmpty() ? "" : ";") + "include_probe=" + showProbeData;
-        return dw.search(qnaSystemId, questionText, filter, queryPlan, properties);
+        return dw.search(qnaSystemId, questionText, filter, queryPlan, getRequestProperties());
+    }
+
+    @Override
+    protected CompletableFuture<RAGResponse> doCallAsync(DataworkzRAG dw) throws URISyntaxException {
+        return dw.searchAsync(qnaSystemId, questionText, filter, queryPlan, getRequestProperties());
+    }
+
+    private String getRequestProperties() {
+        String props = properties == null ? "" : properties;
+        return props + (props.isEmpty() ? "" : ";") + "include_probe=" + showProbeData;
     }
 
     @Override
@@ -390,7 +797,7 @@ abstract class BaseQnAClient implements Callable<Integer> {
     int secondsBetweenQueries;
     @CommandLine.Option(names = {"-cf", "-config-file"}, description = "Config file. Any other command line parameters override values in config file.")
     String configFile;
-    @CommandLine.Option(names = {"-f", "-output-format"}, description = "Format of result. Can be console (default) | console-plain | json",
+    @CommandLine.Option(names = {"-f", "-output-format"}, description = "Format of result. Can be console (default) | console-plain | json | jsonl",
             defaultValue = "console")
     String format;
     @CommandLine.Option(names = {"-of", "-output-file"}, description = "Location of output file")
@@ -401,10 +808,34 @@ abstract class BaseQnAClient implements Callable<Integer> {
     String apiKey;
     @CommandLine.Option(names = {"-if", "-input-file"}, description = "Input file of questions to run.")
     String inputFile;
+    @CommandLine.Option(names = {"-gz", "-compress"}, description = "Request gzip/deflate compressed responses")
+    boolean compress;
+    @CommandLine.Option(names = {"-mc", "-max-concurrency"}, description = "Run input file commands concurrently, adapting the number in flight up to this maximum", defaultValue = "1")
+    int maxConcurrency;
+    @CommandLine.Option(names = {"-rt", "-request-timeout-secs"}, description = "Timeout for each request in seconds. 0 (default) waits indefinitely", defaultValue = "0")
+    int requestTimeoutSecs;
+    @CommandLine.Option(names = {"-tf", "-timings-file"}, description = "CSV file to write per command phase timings to when running an input file")
+    String timingsFile;
+
+    static final String TIMINGS_HEADER = "index,status,queue_ms,headers_ms,ttfb_ms,download_ms,decode_ms,render_ms,total_ms,wire_bytes,body_bytes,limit,input\n";
+
+    private static final Map<String, DataworkzRAG> CLIENTS = new ConcurrentHashMap<>();
 
     Properties configProps = new Properties();
     private DataworkzRAG dw;
 
+    /**
+     * Clients are kept for the life of the JVM so that shell / serve mode reuse connections across commands.
+     */
+    private static DataworkzRAG getClient(String dwHost, String apiKey, boolean compress) {
+        String key = dwHost + "|" + apiKey + "|" + compress;
+        return CLIENTS.computeIfAbsent(key, k -> {
+            DataworkzRAG client = new DataworkzRAG(dwHost, apiKey);
+            client.setCompressionEnabled(compress);
+            return client;
+        });
+    }
+
     private void loadCommonOptions() {
         if (format.equals("console")) {
             System.setProperty("picocli.ansi", "tty");
@@ -429,7 +860,8 @@ abstract class BaseQnAClient implements Callable<Integer> {
         this.dwHost = safeSet.apply(dwHost, configProps.getProperty("service"));
         this.apiKey = safeSet.apply(apiKey, configProps.getProperty("api-key"));
 
-        this.dw = new DataworkzRAG(dwHost, apiKey);
+        this.dw = getClient(dwHost, apiKey, compress || Boolean.parseBoolean(configProps.getProperty("compress")));
+        this.dw.setRequestTimeout(requestTimeoutSecs > 0 ? Duration.ofSeconds(requestTimeoutSecs) : null);
 
         if (configProps.getProperty("delay-secs") != null && secondsBetweenQueries == 1) { // if it is default
             secondsBetweenQueries = Integer.parseInt(configProps.getProperty("delay-secs"));
@@ -442,6 +874,18 @@ abstract class BaseQnAClient implements Callable<Integer> {
             }
         });
 
+        doIfOptionPresent(timingsFile, () -> {
+            try {
+                File tf = new File(timingsFile);
+                if (tf.getParentFile() != null) {
+                    tf.getParentFile().mkdirs();
+                }
+                Files.writeString(tf.toPath(), TIMINGS_HEADER, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
         doIfOptionPresent(outputFile, () -> {
             try {
                 File outf = new File(outputFile);
@@ -467,6 +911,15 @@ abstract class BaseQnAClient implements Callable<Integer> {
     public Integer call() throws Exception {
         loadCommonOptions();
         loadOptions();
+        try {
+            run();
+        } finally {
+            afterRun(dw);
+        }
+        return 0;
+    }
+
+    private void run() throws Exception {
         if (inputFile != null) {
             File inf = new File(inputFile);
             List<String> inputs = Files.readAllLines(inf.toPath());
@@ -478,30 +931,45 @@ abstract class BaseQnAClient implements Callable<Integer> {
                     writeToOutput("[\n");
                 });
             }
-            for (int idx = 0; idx < inputs.size(); idx++) {
-                String s = inputs.get(idx);
-                if (s.startsWith("# ")) {
-                    System.out.printf(s);
-                    continue;
-                }
-                System.out.print("Running command " + i++ + "/" + inputs.size() + " :: " + s);
-                long time = System.currentTimeMillis();
-                loadInputFromInputFile(i - 2, s);
-                RAGResponse response = doCallImpl(dw);
-                System.out.println("... Done. Took " + (System.currentTimeMillis() - time) + " msecs");
-                outputResponse(response);
-                if (format.equals("json")) {
-                    if (idx + 1 < inputs.size()) {
-                        doIfOptionPresent(outputFile, () -> {
-                            writeToOutput(",\n");
-                        });
+            AdaptiveLimiter limiter = maxConcurrency > 1 ? new AdaptiveLimiter(1, 1, maxConcurrency) : null;
+            if (limiter != null) {
+                System.out.println("Running up to " + maxConcurrency + " commands at a time, delay between commands is ignored");
+            }
+            dw.setConcurrencyLimiter(limiter);
+            // calls are started in order and their results written in order; at most a window of them is pending
+            Deque<PendingCall> pending = new ArrayDeque<>();
+            try {
+                for (int idx = 0; idx < inputs.size(); idx++) {
+                    String s = inputs.get(idx);
+                    if (s.startsWith("# ")) {
+                        System.out.printf(s);
+                        continue;
+                    }
+                    loadInputFromInputFile(i - 1, s);
+                    if (limiter != null) {
+                        pending.add(new PendingCall(i++, s, doCallAsync(dw), idx + 1 < inputs.size()));
+                        while (!pending.isEmpty() && (pending.peek().response.isDone() || pending.size() > 2 * maxConcurrency)) {
+                            finishPendingCall(pending.poll(), inputs.size(), limiter);
+                        }
+                        continue;
+                    }
+                    System.out.print("Running command " + i++ + "/" + inputs.size() + " :: " + s);
+                    long time = System.currentTimeMillis();
+                    RAGResponse response = doCallImpl(dw);
+                    System.out.println("... Done. Took " + (System.currentTimeMillis() - time) + " msecs" + getTransferSummary(response) + getNearDuplicateSummary(response));
+                    writeResult(i - 1, s, response, idx + 1 < inputs.size());
+                    try {
+                        Thread.sleep(secondsBetweenQueries * 1000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
                     }
                 }
-                try {
-                    Thread.sleep(secondsBetweenQueries * 1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                while (!pending.isEmpty()) {
+                    finishPendingCall(pending.poll(), inputs.size(), limiter);
                 }
+            } finally {
+                pending.forEach(p -> p.response.cancel(true));
+                dw.setConcurrencyLimiter(null);
             }
             if (format.equals("json")) {
                 doIfOptionPresent(outputFile, () -> {
@@ -510,15 +978,97 @@ abstract class BaseQnAClient implements Callable<Integer> {
             }
         } else {
             RAGResponse response = doCallImpl(this.dw);
-            outputResponse(response);
+            outputResponse(1, null, response);
         }
-        return 0;
+    }
+
+    /**
+     * Called once the command has run, also when it failed.
+     */
+    protected void afterRun(DataworkzRAG dataworkzRAG) throws IOException {
+
     }
 
     protected void loadInputFromInputFile(int index, String input) {
 
     }
 
+    private void writeResult(int number, String input, RAGResponse response, boolean more) {
+        outputResponse(number, input, response);
+        writeTimings(number, input, response);
+        if (format.equals("json")) {
+            if (more) {
+                doIfOptionPresent(outputFile, () -> {
+                    writeToOutput(",\n");
+                });
+            }
+        }
+    }
+
+    private void finishPendingCall(PendingCall call, int total, AdaptiveLimiter limiter) throws Exception {
+        RAGResponse response;
+        try {
+            response = call.response.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        System.out.println(String.format(Locale.ROOT, "Command %d/%d :: %s... Done. Took %.0f msecs, %s%s",
+                call.number, total, call.input, response.getTimings().getTotalMillis(), limiter,
+                getTransferSummary(response) + getNearDuplicateSummary(response)));
+        writeResult(call.number, call.input, response, call.more);
+    }
+
+    private static class PendingCall {
+        final int number;
+        final String input;
+        final CompletableFuture<RAGResponse> response;
+        final boolean more;
+
+        PendingCall(int number, String input, CompletableFuture<RAGResponse> response, boolean more) {
+            this.number = number;
+            this.input = input;
+            this.response = response;
+            this.more = more;
+        }
+    }
+
+    private void writeTimings(int index, String input, RAGResponse response) {
+        RequestTimings t = response.getTimings();
+        if (!isOptionPresent(timingsFile) || t == null) {
+            return;
+        }
+        TransferStats stats = response.getTransferStats();
+        AdaptiveLimiter limiter = dw.getConcurrencyLimiter();
+        String row = String.format(Locale.ROOT, "%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,\"%s\"%n",
+                index, response.getResponse().statusCode(),
+                t.getQueueMillis(), t.getTimeToHeadersMillis(), t.getTimeToFirstByteMillis(), t.getDownloadMillis(),
+                t.getDecodeMillis(), t.getRenderMillis(), t.getTotalMillis(),
+                stats == null ? 0 : stats.getWireBytes(), stats == null ? 0 : stats.getBodyBytes(),
+                limiter == null ? 1 : limiter.getLimit(),
+                input.replace("\"", "\"\""));
+        try {
+            Files.writeString(new File(timingsFile).toPath(), row, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String getTransferSummary(RAGResponse response) {
+        TransferStats stats = response.getTransferStats();
+        if (!dw.isCompressionEnabled() || stats == null) {
+            return "";
+        }
+        return ". Received " + stats.getWireBytes() + " bytes (" + stats.getContentEncoding() + "), " + stats.getBodyBytes() + " bytes decoded";
+    }
+
+    private static String getNearDuplicateSummary(RAGResponse response) {
+        NearDuplicateIndex.Match match = response.getNearDuplicate();
+        if (match == null) {
+            return "";
+        }
+        return (response.isServedFromIndex() ? ". Served from near duplicate : " : ". Near duplicate of : ") + match;
+    }
+
     protected String getOptionValue(String existing, String configKey) {
         return (existing == null) ? configProps.getProperty(configKey) : existing;
     }
@@ -527,6 +1077,14 @@ abstract class BaseQnAClient implements Callable<Integer> {
 
     protected abstract RAGResponse doCallImpl(DataworkzRAG dataworkzRAG) throws URISyntaxException, IOException, InterruptedException;
 
+    /**
+     * Starts the call without waiting for it. Must read all command state before returning since the next input
+     * is loaded straight after. Commands without an async API run synchronously.
+     */
+    protected CompletableFuture<RAGResponse> doCallAsync(DataworkzRAG dataworkzRAG) throws URISyntaxException, IOException, InterruptedException {
+        return CompletableFuture.completedFuture(doCallImpl(dataworkzRAG));
+    }
+
     void doIfOptionPresent(String option, Runnable fn) {
         if (isOptionPresent(option)) {
             fn.run();
@@ -569,17 +1127,25 @@ abstract class BaseQnAClient implements Callable<Integer> {
         }
     }
 
-    private void outputResponse(RAGResponse response) {
+    private void outputResponse(int index, String input, RAGResponse response) {
         String output = "";
+        long renderStart = System.nanoTime();
         if (format.equals("none")) {
             return;
         } else if (format.startsWith("console")) {
             output = getResponseAsString(response);
         } else if (format.equals("json")) {
             output = getBodyString(response);
+        } else if (format.equals("jsonl")) {
+            output = RunRecord.toJsonLine(index, input, response);
+            // writeToOutput only adds a line break on the console
+            output = isOptionPresent(outputFile) ? output + "\n" : output;
         } else {
             throw new IllegalArgumentException("Invalid format value " + format);
         }
+        if (response.getTimings() != null) {
+            response.getTimings().setRenderNanos(System.nanoTime() - renderStart);
+        }
         writeToOutput(output);
 //        if (isOptionPresent(outputFile)) {
 ////            try {
@@ -7,11 +7,21 @@ public class RAGResponse {
     private final String responseType;
     private HttpResponse response;
     private Map<String, ?> payload;
+    private final TransferStats transferStats;
+    private final RequestTimings timings;
+    private NearDuplicateIndex.Match nearDuplicate;
+    private boolean servedFromIndex;
 
     public RAGResponse(String responseType, HttpResponse response, Map<String, ?> payload) {
+        this(responseType, response, payload, null, null);
+    }
+
+    public RAGResponse(String responseType, HttpResponse response, Map<String, ?> payload, TransferStats transferStats, RequestTimings timings) {
         this.responseType = responseType;
         this.response = response;
         this.payload = payload;
+        this.transferStats = transferStats;
+        this.timings = timings;
     }
 
     public Map<String, ?> getPayload() {
@@ -26,6 +36,33 @@ public class RAGResponse {
         return response;
     }
 
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    public RequestTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * @return the earlier question this one was matched to by a {@link NearDuplicateIndex}, null if none
+     */
+    public NearDuplicateIndex.Match getNearDuplicate() {
+        return nearDuplicate;
+    }
+
+    /**
+     * @return true if the answer is the near duplicate's and the service was not called
+     */
+    public boolean isServedFromIndex() {
+        return servedFromIndex;
+    }
+
+    void setNearDuplicate(NearDuplicateIndex.Match nearDuplicate, boolean servedFromIndex) {
+        this.nearDuplicate = nearDuplicate;
+        this.servedFromIndex = servedFromIndex;
+    }
+
     @Override
     public String toString() {
         return payload == null ? response.toString() + "==>" + response.body() : payload.toString();
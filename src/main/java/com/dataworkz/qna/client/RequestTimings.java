@@ -0,0 +1,118 @@
+package com.dataworkz.qna.client;
+
+/**
+ * Phase breakdown of a single call. All marks are {@link System#nanoTime()} readings taken on the client:
+ * <ul>
+ *     <li>queue - from the start of the call until the request is handed to the {@code HttpClient}</li>
+ *     <li>headers - until response headers arrive. java.net.http does not expose connection setup, so
+ *     connect/TLS time is part of this phase together with the server side retrieval and LLM time</li>
+ *     <li>first byte - until the first body bytes arrive</li>
+ *     <li>download - from the first to the last body byte</li>
+ *     <li>decode - JSON parsing of the body</li>
+ *     <li>render - formatting of the response, recorded by the caller</li>
+ * </ul>
+ */
+public class RequestTimings {
+    private final long startNanos;
+    private volatile long sendNanos;
+    private volatile long headersNanos;
+    private volatile long firstByteNanos;
+    private volatile long lastByteNanos;
+    private volatile long decodedNanos;
+    private volatile long renderNanos;
+
+    public RequestTimings() {
+        this(System.nanoTime());
+    }
+
+    public RequestTimings(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    void markSend() {
+        sendNanos = System.nanoTime();
+    }
+
+    void markHeaders() {
+        headersNanos = System.nanoTime();
+    }
+
+    void markFirstByte() {
+        if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+        }
+    }
+
+    void markLastByte() {
+        long now = System.nanoTime();
+        if (firstByteNanos == 0) {
+            firstByteNanos = now;
+        }
+        lastByteNanos = now;
+    }
+
+    void markDecoded() {
+        decodedNanos = System.nanoTime();
+    }
+
+    public void setRenderNanos(long renderNanos) {
+        this.renderNanos = renderNanos;
+    }
+
+    /**
+     * @return nanos from handing the request to the client until the last body byte, 0 if not complete
+     */
+    long getRoundTripNanos() {
+        return sendNanos == 0 || lastByteNanos == 0 ? 0 : lastByteNanos - sendNanos;
+    }
+
+    public double getQueueMillis() {
+        return millis(startNanos, sendNanos);
+    }
+
+    public double getTimeToHeadersMillis() {
+        return millis(sendNanos, headersNanos);
+    }
+
+    public double getTimeToFirstByteMillis() {
+        return millis(sendNanos, firstByteNanos);
+    }
+
+    public double getDownloadMillis() {
+        return millis(firstByteNanos, lastByteNanos);
+    }
+
+    /**
+     * @return time from handing the request to the client until the last body byte, i.e. time to first byte plus
+     * download. Unlike {@link #getTotalMillis()} it leaves out queueing, so it is comparable across concurrency levels
+     */
+    public double getLatencyMillis() {
+        return millis(sendNanos, lastByteNanos);
+    }
+
+    public double getDecodeMillis() {
+        return millis(lastByteNanos, decodedNanos);
+    }
+
+    public double getRenderMillis() {
+        return renderNanos / 1_000_000.0;
+    }
+
+    /**
+     * @return time from the start of the call until the body was decoded, plus render time if recorded
+     */
+    public double getTotalMillis() {
+        return millis(startNanos, decodedNanos) + getRenderMillis();
+    }
+
+    private static double millis(long from, long to) {
+        return from == 0 || to == 0 ? 0 : (to - from) / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue=%.1f headers=%.1f ttfb=%.1f download=%.1f decode=%.1f render=%.1f total=%.1f ms",
+                getQueueMillis(), getTimeToHeadersMillis(), getTimeToFirstByteMillis(), getDownloadMillis(),
+                getDecodeMillis(), getRenderMillis(), getTotalMillis());
+    }
+}
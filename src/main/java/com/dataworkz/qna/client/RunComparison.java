@@ -0,0 +1,283 @@
+package com.dataworkz.qna.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compares two {@code jsonl} runs of the same input file. Both files are read a line at a time and records are
+ * matched on their input; only records that are out of step between the two files are held in memory.
+ * <p>
+ * Reports per question status, answer, link and latency changes plus latency percentiles for both runs. A
+ * one-sided Wilcoxon signed-rank test on the paired latencies decides whether the candidate is significantly slower.
+ * Latency is measured from sending the request to its last byte; time spent queued on the client, e.g. behind the
+ * concurrency limiter, is reported separately so runs at different concurrency levels can be compared.
+ */
+public class RunComparison {
+    private static final double[] PERCENTILES = {50, 90, 95, 99};
+    private static final int MIN_SAMPLES = 10;
+
+    private final double alpha;
+    private final double slowdownPct;
+    private final double minDeltaMs;
+
+    private final List<Double> baselineLatencies = new ArrayList<>();
+    private final List<Double> candidateLatencies = new ArrayList<>();
+    private final List<Double> baselineQueue = new ArrayList<>();
+    private final List<Double> candidateQueue = new ArrayList<>();
+    private int matched;
+    private int onlyInBaseline;
+    private int onlyInCandidate;
+    private int statusChanges;
+    private int answerChanges;
+    private int linkChanges;
+    private int slowerQuestions;
+
+    /**
+     * @param alpha significance level of the slowdown test
+     * @param slowdownPct per question and p95 increase, in percent, that is flagged
+     * @param minDeltaMs per question increase below which a slowdown is not flagged regardless of percent
+     */
+    public RunComparison(double alpha, double slowdownPct, double minDeltaMs) {
+        this.alpha = alpha;
+        this.slowdownPct = slowdownPct;
+        this.minDeltaMs = minDeltaMs;
+    }
+
+    /**
+     * @return true if the candidate run regressed - significantly slower overall or a p95 increase above the threshold
+     */
+    public boolean compare(Path baseline, Path candidate, PrintStream out) throws IOException {
+        Map<String, Deque<RunRecord>> pendingBaseline = new HashMap<>();
+        Map<String, Deque<RunRecord>> pendingCandidate = new HashMap<>();
+        try (BufferedReader a = Files.newBufferedReader(baseline, StandardCharsets.UTF_8);
+             BufferedReader b = Files.newBufferedReader(candidate, StandardCharsets.UTF_8)) {
+            RunRecord ra = next(a);
+            RunRecord rb = next(b);
+            while (ra != null || rb != null) {
+                if (ra != null) {
+                    RunRecord other = poll(pendingCandidate, ra.input);
+                    if (other != null) {
+                        compareRecord(ra, other, out);
+                    } else {
+                        pendingBaseline.computeIfAbsent(ra.input, k -> new ArrayDeque<>()).add(ra);
+                    }
+                }
+                if (rb != null) {
+                    RunRecord other = poll(pendingBaseline, rb.input);
+                    if (other != null) {
+                        compareRecord(other, rb, out);
+                    } else {
+                        pendingCandidate.computeIfAbsent(rb.input, k -> new ArrayDeque<>()).add(rb);
+                    }
+                }
+                ra = next(a);
+                rb = next(b);
+            }
+        }
+        pendingBaseline.values().forEach(q -> q.forEach(r -> {
+            onlyInBaseline++;
+            out.println(String.format(Locale.ROOT, "[%d] %s : only in baseline", r.index, r.input));
+        }));
+        pendingCandidate.values().forEach(q -> q.forEach(r -> {
+            onlyInCandidate++;
+            out.println(String.format(Locale.ROOT, "[%d] %s : only in candidate", r.index, r.input));
+        }));
+        return printSummary(out);
+    }
+
+    private static RunRecord next(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            RunRecord record = RunRecord.parse(line);
+            if (record != null) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private static RunRecord poll(Map<String, Deque<RunRecord>> pending, String key) {
+        Deque<RunRecord> queue = pending.get(key);
+        if (queue == null) {
+            return null;
+        }
+        RunRecord record = queue.poll();
+        if (queue.isEmpty()) {
+            pending.remove(key);
+        }
+        return record;
+    }
+
+    private void compareRecord(RunRecord a, RunRecord b, PrintStream out) {
+        matched++;
+        List<String> changes = new ArrayList<>();
+        if (a.status != b.status) {
+            statusChanges++;
+            changes.add("status " + a.status + " -> " + b.status);
+        }
+        if (!Double.isNaN(a.latencyMs) && !Double.isNaN(b.latencyMs)) {
+            baselineLatencies.add(a.latencyMs);
+            candidateLatencies.add(b.latencyMs);
+            double delta = b.latencyMs - a.latencyMs;
+            if (delta >= minDeltaMs && a.latencyMs > 0 && delta * 100 / a.latencyMs >= slowdownPct) {
+                slowerQuestions++;
+                changes.add(String.format(Locale.ROOT, "SLOWER %.1f -> %.1f ms (%+.1f%%)", a.latencyMs, b.latencyMs, delta * 100 / a.latencyMs));
+            }
+        }
+        if (!Double.isNaN(a.queueMs) && !Double.isNaN(b.queueMs)) {
+            baselineQueue.add(a.queueMs);
+            candidateQueue.add(b.queueMs);
+        }
+        if (a.status == 200 && b.status == 200) {
+            if (!Objects.equals(a.getAnswer(), b.getAnswer())) {
+                answerChanges++;
+                changes.add("answer changed");
+            }
+            List<String> linksA = a.getLinks();
+            List<String> linksB = b.getLinks();
+            if (!linksA.equals(linksB)) {
+                linkChanges++;
+                Set<String> added = new LinkedHashSet<>(linksB);
+                added.removeAll(linksA);
+                Set<String> removed = new LinkedHashSet<>(linksA);
+                removed.removeAll(linksB);
+                changes.add(added.isEmpty() && removed.isEmpty()
+                        ? "links reordered"
+                        : "links +" + added + " -" + removed);
+            }
+        }
+        if (!changes.isEmpty()) {
+            out.println(String.format(Locale.ROOT, "[%d] %s : %s", a.index, a.input, String.join("; ", changes)));
+        }
+    }
+
+    private boolean printSummary(PrintStream out) {
+        out.println();
+        out.println(String.format(Locale.ROOT, "Matched %d, only in baseline %d, only in candidate %d",
+                matched, onlyInBaseline, onlyInCandidate));
+        out.println(String.format(Locale.ROOT, "Status changes %d, answer changes %d, link changes %d, slower questions %d",
+                statusChanges, answerChanges, linkChanges, slowerQuestions));
+        int n = baselineLatencies.size();
+        if (n == 0) {
+            out.println("No latencies to compare");
+            return false;
+        }
+        double[] a = toSortedArray(baselineLatencies);
+        double[] b = toSortedArray(candidateLatencies);
+        out.println(String.format(Locale.ROOT, "%-6s %12s %12s %12s", "", "baseline ms", "candidate ms", "change"));
+        boolean p95Regression = false;
+        for (double p : PERCENTILES) {
+            double pa = percentile(a, p);
+            double pb = percentile(b, p);
+            double pct = pa == 0 ? 0 : (pb - pa) * 100 / pa;
+            out.println(String.format(Locale.ROOT, "p%-5.0f %12.1f %12.1f %+11.1f%%", p, pa, pb, pct));
+            if (p == 95 && pct >= slowdownPct) {
+                p95Regression = true;
+            }
+        }
+        if (!baselineQueue.isEmpty()) {
+            double[] qa = toSortedArray(baselineQueue);
+            double[] qb = toSortedArray(candidateQueue);
+            out.println(String.format(Locale.ROOT, "%-6s %12.1f %12.1f %12s", "queue", percentile(qa, 50),
+                    percentile(qb, 50), "p50, not gated"));
+        }
+
+        boolean significant = false;
+        if (n < MIN_SAMPLES) {
+            out.println("Too few paired samples (" + n + ") for a significance test");
+        } else {
+            double pValue = wilcoxonSlowerPValue();
+            significant = pValue < alpha;
+            out.println(String.format(Locale.ROOT, "Wilcoxon signed-rank, candidate slower: p = %.4f (alpha %.3f)%s",
+                    pValue, alpha, significant ? " SIGNIFICANT SLOWDOWN" : ""));
+        }
+        if (p95Regression) {
+            out.println(String.format(Locale.ROOT, "p95 REGRESSION above %.1f%%", slowdownPct));
+        }
+        return significant || p95Regression;
+    }
+
+    /**
+     * One-sided p-value for "candidate latencies are larger", normal approximation with tie and continuity correction.
+     */
+    private double wilcoxonSlowerPValue() {
+        List<Double> deltas = new ArrayList<>();
+        for (int i = 0; i < baselineLatencies.size(); i++) {
+            double d = candidateLatencies.get(i) - baselineLatencies.get(i);
+            if (d != 0) {
+                deltas.add(d);
+            }
+        }
+        int n = deltas.size();
+        if (n == 0) {
+            return 1.0;
+        }
+        deltas.sort((x, y) -> Double.compare(Math.abs(x), Math.abs(y)));
+        double wPlus = 0;
+        double tieCorrection = 0;
+        for (int i = 0; i < n; ) {
+            int j = i;
+            while (j + 1 < n && Math.abs(deltas.get(j + 1)) == Math.abs(deltas.get(i))) {
+                j++;
+            }
+            double rank = (i + j + 2) / 2.0;
+            int ties = j - i + 1;
+            tieCorrection += (double) ties * ties * ties - ties;
+            for (int k = i; k <= j; k++) {
+                if (deltas.get(k) > 0) {
+                    wPlus += rank;
+                }
+            }
+            i = j + 1;
+        }
+        double mean = n * (n + 1) / 4.0;
+        double variance = n * (n + 1) * (2.0 * n + 1) / 24.0 - tieCorrection / 48.0;
+        if (variance <= 0) {
+            return 1.0;
+        }
+        double z = (wPlus - mean - 0.5) / Math.sqrt(variance);
+        return 1.0 - normalCdf(z);
+    }
+
+    private static double normalCdf(double z) {
+        return 0.5 * (1 + erf(z / Math.sqrt(2)));
+    }
+
+    // Abramowitz and Stegun 7.1.26, absolute error below 1.5e-7
+    private static double erf(double x) {
+        double sign = Math.signum(x);
+        x = Math.abs(x);
+        double t = 1 / (1 + 0.3275911 * x);
+        double y = 1 - (((((1.061405429 * t - 1.453152027) * t) + 1.421413741) * t - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+        return sign * y;
+    }
+
+    private static double[] toSortedArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
@@ -0,0 +1,134 @@
+package com.dataworkz.qna.client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One line of a {@code jsonl} run output - the input that was run, its status, timings and the response body.
+ * Runs are written and read one line at a time so they can be compared without loading a whole run.
+ */
+class RunRecord {
+    final int index;
+    final String input;
+    final int status;
+    final double latencyMs;
+    final double queueMs;
+    final JsonObject response;
+
+    private RunRecord(int index, String input, int status, double latencyMs, double queueMs, JsonObject response) {
+        this.index = index;
+        this.input = input;
+        this.status = status;
+        this.latencyMs = latencyMs;
+        this.queueMs = queueMs;
+        this.response = response;
+    }
+
+    static String toJsonLine(int index, String input, RAGResponse response) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("index").value(index);
+            writer.name("input").value(input == null ? "" : input);
+            writer.name("status").value(response.getResponse().statusCode());
+            RequestTimings t = response.getTimings();
+            if (t != null) {
+                writer.name("queueMs").value(t.getQueueMillis());
+                writer.name("headersMs").value(t.getTimeToHeadersMillis());
+                writer.name("ttfbMs").value(t.getTimeToFirstByteMillis());
+                writer.name("downloadMs").value(t.getDownloadMillis());
+                writer.name("decodeMs").value(t.getDecodeMillis());
+                writer.name("latencyMs").value(t.getLatencyMillis());
+                writer.name("totalMs").value(t.getTotalMillis());
+            }
+            TransferStats stats = response.getTransferStats();
+            if (stats != null) {
+                writer.name("wireBytes").value(stats.getWireBytes());
+                writer.name("bodyBytes").value(stats.getBodyBytes());
+            }
+            String body = String.valueOf(response.getResponse().body());
+            if (response.hasPayload()) {
+                // valid JSON cannot hold raw line breaks inside strings, so this only drops formatting whitespace
+                writer.name("response").jsonValue(body.replace('\n', ' ').replace('\r', ' '));
+            } else {
+                writer.name("error").value(body);
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the parsed record or null when the line is not a record, e.g. blank
+     */
+    static RunRecord parse(String line) {
+        line = line.trim();
+        if (!line.startsWith("{")) {
+            return null;
+        }
+        JsonObject obj = JsonParser.parseString(line).getAsJsonObject();
+        JsonElement response = obj.get("response");
+        return new RunRecord(
+                obj.has("index") ? obj.get("index").getAsInt() : 0,
+                obj.has("input") ? obj.get("input").getAsString() : "",
+                obj.has("status") ? obj.get("status").getAsInt() : 0,
+                getLatency(obj),
+                obj.has("queueMs") ? obj.get("queueMs").getAsDouble() : Double.NaN,
+                response != null && response.isJsonObject() ? response.getAsJsonObject() : null);
+    }
+
+    /**
+     * Send to last byte. Runs written before {@code latencyMs} was recorded fall back to time to first byte plus
+     * download, and to the total only when neither is present.
+     */
+    private static double getLatency(JsonObject obj) {
+        if (obj.has("latencyMs")) {
+            return obj.get("latencyMs").getAsDouble();
+        }
+        if (obj.has("ttfbMs") && obj.has("downloadMs")) {
+            return obj.get("ttfbMs").getAsDouble() + obj.get("downloadMs").getAsDouble();
+        }
+        return obj.has("totalMs") ? obj.get("totalMs").getAsDouble() : Double.NaN;
+    }
+
+    String getAnswer() {
+        if (response == null || !response.has("answer") || response.get("answer").isJsonNull()) {
+            return null;
+        }
+        JsonElement answer = response.get("answer");
+        return answer.isJsonPrimitive() ? answer.getAsString().trim() : answer.toString();
+    }
+
+    /**
+     * @return links of the answer context (ask) or of the search results (search), in order
+     */
+    List<String> getLinks() {
+        if (response == null) {
+            return Collections.emptyList();
+        }
+        JsonElement list = response.has("context") ? response.get("context") : response.get("searchResultsList");
+        if (list == null || !list.isJsonArray()) {
+            return Collections.emptyList();
+        }
+        List<String> links = new ArrayList<>();
+        for (JsonElement e : (JsonArray) list) {
+            if (e.isJsonObject() && e.getAsJsonObject().has("link")) {
+                JsonElement link = e.getAsJsonObject().get("link");
+                links.add(link.isJsonNull() ? "null" : link.getAsString());
+            }
+        }
+        return links;
+    }
+}
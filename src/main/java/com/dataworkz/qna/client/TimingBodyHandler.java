@@ -0,0 +1,65 @@
+package com.dataworkz.qna.client;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Wraps another {@link HttpResponse.BodyHandler} and marks header arrival, first byte and last byte
+ * in the supplied {@link RequestTimings}. Place it outermost so the marks reflect bytes on the wire.
+ */
+public class TimingBodyHandler<T> implements HttpResponse.BodyHandler<T> {
+    private final HttpResponse.BodyHandler<T> downstream;
+    private final RequestTimings timings;
+
+    public TimingBodyHandler(HttpResponse.BodyHandler<T> downstream, RequestTimings timings) {
+        this.downstream = downstream;
+        this.timings = timings;
+    }
+
+    @Override
+    public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo responseInfo) {
+        timings.markHeaders();
+        return new TimingBodySubscriber<>(downstream.apply(responseInfo), timings);
+    }
+
+    static class TimingBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> downstream;
+        private final RequestTimings timings;
+
+        TimingBodySubscriber(HttpResponse.BodySubscriber<T> downstream, RequestTimings timings) {
+            this.downstream = downstream;
+            this.timings = timings;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return downstream.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            downstream.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            timings.markFirstByte();
+            downstream.onNext(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            timings.markLastByte();
+            downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            timings.markLastByte();
+            downstream.onComplete();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.dataworkz.qna.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counts for a single response body. {@code wireBytes} is what was read off the connection and
+ * {@code bodyBytes} is what was handed to the parser after any decompression.
+ */
+public class TransferStats {
+    private volatile String contentEncoding = "identity";
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong bodyBytes = new AtomicLong();
+
+    void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    void addWireBytes(long count) {
+        wireBytes.addAndGet(count);
+    }
+
+    void addBodyBytes(long count) {
+        bodyBytes.addAndGet(count);
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    public long getBodyBytes() {
+        return bodyBytes.get();
+    }
+
+    public boolean isCompressed() {
+        return !"identity".equals(contentEncoding);
+    }
+
+    /**
+     * @return wire bytes as a fraction of body bytes, 1.0 when nothing was compressed
+     */
+    public double getCompressionRatio() {
+        long body = getBodyBytes();
+        return body == 0 ? 1.0 : (double) getWireBytes() / body;
+    }
+
+    @Override
+    public String toString() {
+        return contentEncoding + " " + getWireBytes() + "/" + getBodyBytes() + " bytes";
+    }
+}